@@ -0,0 +1,51 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.data_structures;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a TimestampMatrix.minTimestampVector,
+ * including the time spent waiting for the lock of the matrix.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@Name("recipes_service.AckMinimum")
+@Label("Ack Minimum")
+@Category({"Recipes Service", "TSAE"})
+@Description("Computation of the timestamps known by all members")
+@StackTrace(false)
+public class AckMinimumEvent extends Event {
+
+	@Label("Participants")
+	int participants;
+
+	@Label("Recomputed Columns")
+	@Description("Columns whose cached minimum had to be recomputed")
+	int recomputedColumns;
+}
@@ -0,0 +1,539 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageAErequest;
+import recipes_service.communication.MessageEndTSAE;
+import recipes_service.communication.MessageOperation;
+import recipes_service.communication.MessageOperationBatch;
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.OperationType;
+import recipes_service.data.Recipe;
+import recipes_service.data.RemoveOperation;
+import recipes_service.tsae.data_structures.ParticipantRegistry;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Binary encoding of the messages of a TSAE session.
+ *
+ * Sequence numbers are written as zigzag varints and hosts as their
+ * slot in the ParticipantRegistry announced in the header of the
+ * stream, so summaries and acks are sent as plain arrays of varints.
+ * Strings are written as a varint length followed by their UTF-8 bytes.
+ * AE requests can be written as a delta of the last summary and ack
+ * sent to the same peer (see SessionHistory). A frame can be sent
+ * compressed, inside a DEFLATED frame, to peers whose header has
+ * FLAG_DEFLATE, and operations are only grouped in OPERATION_BATCH
+ * frames for peers whose header has FLAG_BATCH.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+final class BinaryCodec {
+
+	static final int VERSION = 3;
+
+	// flags of the header
+	// the sender can run more than one session over the same connection
+	static final int FLAG_REUSABLE = 1;
+	// the sender accepts DEFLATED frames
+	static final int FLAG_DEFLATE = 2;
+	// the sender accepts OPERATION_BATCH frames
+	static final int FLAG_BATCH = 4;
+
+	// frame tags
+	static final int AE_REQUEST = 1;
+	static final int OPERATION = 2;
+	static final int OPERATION_BATCH = 3;
+	static final int END_TSAE = 4;
+	// another frame compressed with Deflate, preceded by its length
+	static final int DEFLATED = 5;
+
+	// host codes of a timestamp; slot k of the registry is written as k + HOST_SLOT
+	private static final int HOST_NULL_TIMESTAMP = 0;
+	private static final int HOST_INLINE = 1;
+	private static final int HOST_SLOT = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// lists read are presized up to this number of elements: a corrupt
+	// count fails when the stream runs out, not when the list is created
+	private static final int MAX_INITIAL_CAPACITY = 1024;
+
+	private BinaryCodec(){
+	}
+
+	// ******************************
+	// *** header
+	// ******************************
+
+	/**
+	 * first data sent by each side of a binary channel
+	 */
+	static class Header {
+		final String serverId;
+		final long incarnation;
+		final int flags;
+		final ParticipantRegistry participants;
+
+		Header(String serverId, long incarnation, int flags, ParticipantRegistry participants){
+			this.serverId = serverId;
+			this.incarnation = incarnation;
+			this.flags = flags;
+			this.participants = participants;
+		}
+	}
+
+	static void writeHeader(DataOutput out, Header header) throws IOException{
+		out.writeByte(VERSION);
+		writeString(out, header.serverId);
+		out.writeLong(header.incarnation);
+		writeVarint(out, header.flags);
+		writeVarint(out, header.participants.size());
+		for (int i = 0; i < header.participants.size(); i++) {
+			writeString(out, header.participants.getId(i));
+		}
+	}
+
+	static Header readHeader(DataInput in) throws IOException{
+		int version = in.readUnsignedByte();
+		// version 2 is version 3 without flags
+		if (version < 2 || version > VERSION) {
+			throw new StreamCorruptedException("unsupported TSAE binary version " + version);
+		}
+		String serverId = readString(in);
+		long incarnation = in.readLong();
+		int flags = (version >= 3 ? (int) readVarint(in) : 0);
+		int size = readLength(in);
+		List<String> ids = new Vector<String>(Math.min(size, MAX_INITIAL_CAPACITY));
+		for (int i = 0; i < size; i++) {
+			ids.add(readString(in));
+		}
+		return new Header(serverId, incarnation, flags, ParticipantRegistry.received(ids));
+	}
+
+	// ******************************
+	// *** messages
+	// ******************************
+
+	static void writeMessage(DataOutput out, Message msg, ParticipantRegistry participants) throws IOException{
+		if (msg instanceof MessageAErequest) {
+			writeAErequest(out, (MessageAErequest) msg, participants, 0, null);
+		} else if (msg instanceof MessageOperationBatch) {
+			List<Operation> operations = ((MessageOperationBatch) msg).getOperations();
+			out.writeByte(OPERATION_BATCH);
+			writeVarint(out, operations.size());
+			for (Operation op : operations) {
+				writeOperation(out, op, participants);
+			}
+		} else if (msg instanceof MessageOperation) {
+			out.writeByte(OPERATION);
+			writeOperation(out, ((MessageOperation) msg).getOperation(), participants);
+		} else if (msg instanceof MessageEndTSAE) {
+			out.writeByte(END_TSAE);
+		} else {
+			throw new IOException("message not supported by the binary codec: " + msg.getClass().getName());
+		}
+	}
+
+	static Message readMessage(DataInput in, ParticipantRegistry participants) throws IOException{
+		return readMessage(in.readUnsignedByte(), in, participants);
+	}
+
+	/**
+	 * reads the rest of a frame whose tag has already been read.
+	 * AE requests are only accepted when they are not encoded as a delta
+	 */
+	static Message readMessage(int tag, DataInput in, ParticipantRegistry participants) throws IOException{
+		switch (tag) {
+		case AE_REQUEST:
+			readVarint(in);
+			if (readVarint(in) != 0) {
+				throw new StreamCorruptedException("AE request encoded as a delta of an unknown base");
+			}
+			TimestampVector summary = readVector(in, participants);
+			TimestampMatrix ack = readMatrix(in, participants);
+			return new MessageAErequest(summary, ack);
+		case OPERATION_BATCH:
+			int size = readLength(in);
+			List<Operation> operations = new Vector<Operation>(Math.min(size, MAX_INITIAL_CAPACITY));
+			for (int i = 0; i < size; i++) {
+				operations.add(readOperation(in, participants));
+			}
+			return new MessageOperationBatch(operations);
+		case OPERATION:
+			return new MessageOperation(readOperation(in, participants));
+		case END_TSAE:
+			return new MessageEndTSAE();
+		default:
+			throw new StreamCorruptedException("unknown TSAE frame " + tag);
+		}
+	}
+
+	// ******************************
+	// *** AE requests
+	// ******************************
+
+	/**
+	 * writes an AE request. Its summary and ack are written as a delta of
+	 * base when base is not null and all of them are laid out as participants
+	 * @param out
+	 * @param msg
+	 * @param participants
+	 * @param baseId: identifier of the base formed by this request
+	 * @param base: summary and ack previously sent and acknowledged by the receiver, or null
+	 * @return true if the request has been written as a delta
+	 * @throws IOException
+	 */
+	static boolean writeAErequest(DataOutput out, MessageAErequest msg, ParticipantRegistry participants,
+			long baseId, SessionHistory.SentBase base) throws IOException{
+		TimestampVector summary = msg.getSummary();
+		TimestampMatrix ack = msg.getAck();
+		boolean delta = base != null
+				&& summary.getParticipants() == participants
+				&& ack.getParticipants() == participants
+				&& base.summary.getParticipants() == participants;
+		out.writeByte(AE_REQUEST);
+		writeVarint(out, baseId);
+		// base + 1, so that 0 stands for a full request
+		writeVarint(out, delta ? base.id + 1 : 0);
+		if (delta) {
+			writeVectorDelta(out, summary, base.summary);
+			writeMatrixDelta(out, ack, base.ackVersion);
+		} else {
+			writeVector(out, summary, participants);
+			writeMatrix(out, ack, participants);
+		}
+		return delta;
+	}
+
+	// ******************************
+	// *** TSAE data structures
+	// ******************************
+
+	static void writeVector(DataOutput out, TimestampVector vector, ParticipantRegistry participants) throws IOException{
+		boolean aligned = vector.getParticipants() == participants;
+		for (int i = 0; i < participants.size(); i++) {
+			long seq;
+			if (aligned) {
+				seq = vector.getSeqnumber(i);
+			} else {
+				Timestamp last = vector.getLast(participants.getId(i));
+				seq = last == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : last.getSeqnumber();
+			}
+			writeSignedVarint(out, seq);
+		}
+	}
+
+	static TimestampVector readVector(DataInput in, ParticipantRegistry participants) throws IOException{
+		long[] seqnumbers = new long[participants.size()];
+		for (int i = 0; i < seqnumbers.length; i++) {
+			seqnumbers[i] = readSignedVarint(in);
+		}
+		return new TimestampVector(participants, seqnumbers);
+	}
+
+	static void writeMatrix(DataOutput out, TimestampMatrix matrix, ParticipantRegistry participants) throws IOException{
+		boolean aligned = matrix.getParticipants() == participants;
+		for (int i = 0; i < participants.size(); i++) {
+			long[] row = aligned ? matrix.getRow(i) : matrix.getRow(participants.getId(i), participants);
+			for (int j = 0; j < participants.size(); j++) {
+				writeSignedVarint(out, row == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : row[j]);
+			}
+		}
+	}
+
+	static TimestampMatrix readMatrix(DataInput in, ParticipantRegistry participants) throws IOException{
+		int n = participants.size();
+		long[][] rows = new long[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				rows[i][j] = readSignedVarint(in);
+			}
+		}
+		return new TimestampMatrix(participants, rows);
+	}
+
+	/**
+	 * writes the entries of vector that are different in base.
+	 * Both vectors must have the same participants
+	 */
+	static void writeVectorDelta(DataOutput out, TimestampVector vector, TimestampVector base) throws IOException{
+		int n = vector.getParticipants().size();
+		int changed = 0;
+		for (int i = 0; i < n; i++) {
+			if (vector.getSeqnumber(i) != base.getSeqnumber(i)) {
+				changed++;
+			}
+		}
+		writeVarint(out, changed);
+		for (int i = 0; i < n; i++) {
+			long seq = vector.getSeqnumber(i);
+			if (seq != base.getSeqnumber(i)) {
+				writeVarint(out, i);
+				writeSignedVarint(out, seq);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of base with the entries read applied
+	 */
+	static TimestampVector readVectorDelta(DataInput in, TimestampVector base) throws IOException{
+		ParticipantRegistry participants = base.getParticipants();
+		long[] seqnumbers = new long[participants.size()];
+		for (int i = 0; i < seqnumbers.length; i++) {
+			seqnumbers[i] = base.getSeqnumber(i);
+		}
+		int changed = readLength(in);
+		for (int k = 0; k < changed; k++) {
+			seqnumbers[readSlot(in, participants)] = readSignedVarint(in);
+		}
+		return new TimestampVector(participants, seqnumbers);
+	}
+
+	/**
+	 * writes the rows of matrix that changed after version sinceVersion
+	 */
+	static void writeMatrixDelta(DataOutput out, TimestampMatrix matrix, long sinceVersion) throws IOException{
+		int n = matrix.getParticipants().size();
+		int changed = 0;
+		for (int i = 0; i < n; i++) {
+			if (matrix.getRowVersion(i) > sinceVersion) {
+				changed++;
+			}
+		}
+		writeVarint(out, changed);
+		for (int i = 0; i < n; i++) {
+			if (matrix.getRowVersion(i) > sinceVersion) {
+				writeVarint(out, i);
+				long[] row = matrix.getRow(i);
+				for (int j = 0; j < n; j++) {
+					writeSignedVarint(out, row[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a matrix with the rows read. The rows that have not been
+	 * sent hold null timestamps, so that merging the matrix with
+	 * updateMax only applies the rows sent
+	 */
+	static TimestampMatrix readMatrixDelta(DataInput in, ParticipantRegistry participants) throws IOException{
+		int n = participants.size();
+		long[][] rows = new long[n][n];
+		for (long[] row : rows) {
+			Arrays.fill(row, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+		}
+		int changed = readLength(in);
+		for (int k = 0; k < changed; k++) {
+			long[] row = rows[readSlot(in, participants)];
+			for (int j = 0; j < n; j++) {
+				row[j] = readSignedVarint(in);
+			}
+		}
+		return new TimestampMatrix(participants, rows);
+	}
+
+	private static int readSlot(DataInput in, ParticipantRegistry participants) throws IOException{
+		long slot = readVarint(in);
+		if (slot < 0 || slot >= participants.size()) {
+			throw new StreamCorruptedException("unknown participant slot " + slot);
+		}
+		return (int) slot;
+	}
+
+	// ******************************
+	// *** operations
+	// ******************************
+
+	static void writeOperation(DataOutput out, Operation op, ParticipantRegistry participants) throws IOException{
+		writeTimestamp(out, op.getTimestamp(), participants);
+		if (op.getType() == OperationType.ADD) {
+			Recipe recipe = ((AddOperation) op).getRecipe();
+			out.writeByte(OperationType.ADD.ordinal());
+			writeString(out, recipe.getTitle());
+			writeString(out, recipe.getRecipe());
+			writeString(out, recipe.getAuthor());
+			writeTimestamp(out, recipe.getTimestamp(), participants);
+		} else {
+			RemoveOperation removeOp = (RemoveOperation) op;
+			out.writeByte(OperationType.REMOVE.ordinal());
+			writeString(out, removeOp.getRecipeTitle());
+			writeTimestamp(out, removeOp.getRecipeTimestamp(), participants);
+		}
+	}
+
+	static Operation readOperation(DataInput in, ParticipantRegistry participants) throws IOException{
+		Timestamp timestamp = readTimestamp(in, participants);
+		int type = in.readUnsignedByte();
+		if (type == OperationType.ADD.ordinal()) {
+			String title = readString(in);
+			String recipe = readString(in);
+			String author = readString(in);
+			Timestamp recipeTimestamp = readTimestamp(in, participants);
+			return new AddOperation(new Recipe(title, recipe, author, recipeTimestamp), timestamp);
+		} else if (type == OperationType.REMOVE.ordinal()) {
+			String title = readString(in);
+			Timestamp recipeTimestamp = readTimestamp(in, participants);
+			return new RemoveOperation(title, recipeTimestamp, timestamp);
+		}
+		throw new StreamCorruptedException("unknown operation type " + type);
+	}
+
+	static void writeTimestamp(DataOutput out, Timestamp timestamp, ParticipantRegistry participants) throws IOException{
+		if (timestamp == null) {
+			writeVarint(out, HOST_NULL_TIMESTAMP);
+			return;
+		}
+		int slot = participants.indexOf(timestamp.getHostOrdinal());
+		if (slot < 0) {
+			writeVarint(out, HOST_INLINE);
+			writeString(out, timestamp.getHostid());
+		} else {
+			writeVarint(out, slot + HOST_SLOT);
+		}
+		writeSignedVarint(out, timestamp.getSeqnumber());
+	}
+
+	static Timestamp readTimestamp(DataInput in, ParticipantRegistry participants) throws IOException{
+		long host = readVarint(in);
+		if (host == HOST_NULL_TIMESTAMP) {
+			return null;
+		}
+		String hostId;
+		if (host == HOST_INLINE) {
+			hostId = readString(in);
+		} else if (host >= HOST_SLOT && host - HOST_SLOT < participants.size()) {
+			hostId = participants.getId((int) (host - HOST_SLOT));
+		} else {
+			throw new StreamCorruptedException("unknown host slot " + (host - HOST_SLOT));
+		}
+		return new Timestamp(hostId, readSignedVarint(in));
+	}
+
+	// ******************************
+	// *** primitives
+	// ******************************
+
+	static void writeVarint(DataOutput out, long value) throws IOException{
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarint(DataInput in) throws IOException{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("malformed varint");
+	}
+
+	static void writeSignedVarint(DataOutput out, long value) throws IOException{
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	static long readSignedVarint(DataInput in) throws IOException{
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * reads a length or a number of elements: none can exceed the size of a frame
+	 */
+	static int readLength(DataInput in) throws IOException{
+		long length = readVarint(in);
+		if (length < 0 || length > BinarySessionChannel.MAX_FRAME_SIZE) {
+			throw new StreamCorruptedException("invalid length " + length);
+		}
+		return (int) length;
+	}
+
+	/**
+	 * reads the length of a frame without consuming anything
+	 * @param buffer
+	 * @param offset: index of the length of the frame in buffer
+	 * @return number of bytes of the frame, including its length, or 0
+	 * if the length has not been completely received (up to the limit of buffer)
+	 * @throws IOException if the length is not valid (see readLength)
+	 */
+	static int frameSize(ByteBuffer buffer, int offset) throws IOException{
+		long length = 0;
+		for (int i = 0; i < 10; i++) {
+			if (offset + i >= buffer.limit()) {
+				return 0;
+			}
+			int b = buffer.get(offset + i);
+			length |= (long) (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0) {
+				if (length < 0 || length > BinarySessionChannel.MAX_FRAME_SIZE) {
+					throw new StreamCorruptedException("invalid length " + length);
+				}
+				return i + 1 + (int) length;
+			}
+		}
+		throw new StreamCorruptedException("malformed varint");
+	}
+
+	// strings are written as length + 1, so that 0 stands for null
+	static void writeString(DataOutput out, String s) throws IOException{
+		if (s == null) {
+			writeVarint(out, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(out, bytes.length + 1L);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException{
+		int length = readLength(in);
+		if (length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageAErequest;
+import recipes_service.communication.MsgType;
+import recipes_service.tsae.data_structures.ParticipantRegistry;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Session channel that sends messages with the BinaryCodec.
+ *
+ * Each side starts its stream with a header announcing its id, its
+ * incarnation and its list of participants; then every message is sent
+ * as a frame: its length (varint) followed by its encoding. Operation
+ * frames are buffered and the stream is flushed with every other message.
+ *
+ * The summary and ack of an AE request are sent as a delta of the ones
+ * sent to the same peer in the last completed session. When both
+ * headers announce it, more sessions can follow over the same channel. The bases of a
+ * session are only recorded in the SessionHistory when the session
+ * completes (sessionCompleted).
+ *
+ * Every channel accepts compressed frames. Frames of at least
+ * compressionThreshold bytes are sent compressed once the header of the
+ * peer has been received, if it accepts them and compressing saves
+ * bytes; the AE request of an originator, sent before that header
+ * arrives, never is.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+class BinarySessionChannel implements SessionChannel {
+
+	// first bytes sent by an originator that wants to use this channel
+	static final byte[] MAGIC = {'T', 'S', 'A', 'E'};
+
+	static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DataInputStream in;
+	private DataOutputStream out;
+	private ParticipantRegistry localParticipants;
+	private BinaryCodec.Header remote = null;
+	// this side accepts to run more than one session over the channel
+	private boolean reusable;
+
+	private SessionHistory history;
+	// key of the peer in history (null until known)
+	private String peer;
+	// true if peer is the originator of the session: its key is only known once its header is read
+	private boolean remoteOriginator;
+
+	// bases exchanged in this session, recorded in history when the session completes
+	private SessionHistory.SentBase pendingSent = null;
+	private SessionHistory.ReceivedBase pendingReceived = null;
+
+	private FrameBuffer frame = new FrameBuffer();
+	private DataOutputStream frameOut = new DataOutputStream(frame);
+
+	// frames at least this large are compressed (0: never)
+	private int compressionThreshold;
+	// created with the first frame compressed or received compressed
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	private FrameBuffer compressed;
+	private DataOutputStream compressedOut;
+
+	/**
+	 * @param in
+	 * @param out
+	 * @param localId: id of this server
+	 * @param participants: participants of this server
+	 * @param history: bases of the sessions with each peer
+	 * @param peer: key of the peer in history, or null if this is the partner side
+	 * (the key is then built from the id the originator sends in its header)
+	 * @param reusable: true if this side accepts to run more than one session over the channel
+	 * @param compressionThreshold: minimum size of the frames sent compressed, or 0 to send none
+	 * @throws IOException
+	 */
+	BinarySessionChannel(InputStream in, OutputStream out, String localId, ParticipantRegistry participants,
+			SessionHistory history, String peer, boolean reusable, int compressionThreshold) throws IOException{
+		this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		this.localParticipants = participants;
+		this.history = history;
+		this.peer = peer;
+		this.remoteOriginator = (peer == null);
+		this.reusable = reusable;
+		this.compressionThreshold = compressionThreshold;
+		BinaryCodec.writeHeader(this.out, new BinaryCodec.Header(localId, history.getIncarnation(),
+				(reusable ? BinaryCodec.FLAG_REUSABLE : 0) | BinaryCodec.FLAG_DEFLATE | BinaryCodec.FLAG_BATCH,
+				participants));
+	}
+
+	public void writeMessage(Message msg) throws IOException{
+		frame.reset();
+		if (msg instanceof MessageAErequest) {
+			writeAErequest((MessageAErequest) msg);
+		} else {
+			BinaryCodec.writeMessage(frameOut, msg, localParticipants);
+		}
+		FrameBuffer sent = (compress() ? compressed : frame);
+		BinaryCodec.writeVarint(out, sent.size());
+		sent.writeTo(out);
+		if (msg.type() != MsgType.OPERATION) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * compresses frame into compressed, if it is worth it
+	 * @return true if frame has been compressed
+	 * @throws IOException
+	 */
+	private boolean compress() throws IOException{
+		if (compressionThreshold <= 0 || frame.size() < compressionThreshold
+				|| remote == null || (remote.flags & BinaryCodec.FLAG_DEFLATE) == 0) {
+			return false;
+		}
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			compressed = new FrameBuffer();
+			compressedOut = new DataOutputStream(compressed);
+		}
+		deflater.reset();
+		compressed.reset();
+		compressedOut.writeByte(BinaryCodec.DEFLATED);
+		BinaryCodec.writeVarint(compressedOut, frame.size());
+		deflater.setInput(frame.buffer(), 0, frame.size());
+		deflater.finish();
+		while (!deflater.finished()) {
+			compressed.deflate(deflater);
+			if (compressed.size() >= frame.size()) {
+				// incompressible: sent as it is
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param frameIn: rest of a DEFLATED frame
+	 * @return the frame it contains
+	 * @throws IOException
+	 */
+	private byte[] inflate(DataInputStream frameIn) throws IOException{
+		int length = BinaryCodec.readLength(frameIn);
+		byte[] input = new byte[frameIn.available()];
+		frameIn.readFully(input);
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		inflater.reset();
+		inflater.setInput(input);
+		// the buffer grows with the bytes actually inflated, up to the length announced:
+		// a corrupt or hostile length does not make it allocate MAX_FRAME_SIZE upfront
+		byte[] bytes = new byte[Math.min(length, Math.max(BUFFER_SIZE, 4 * input.length))];
+		int inflated = 0;
+		try {
+			while (inflated < length) {
+				if (inflated == bytes.length) {
+					bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+				}
+				int n = inflater.inflate(bytes, inflated, bytes.length - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("corrupted TSAE compressed frame: " + e.getMessage());
+		}
+		if (inflated != length) {
+			throw new StreamCorruptedException("TSAE compressed frame shorter than announced");
+		}
+		return bytes;
+	}
+
+	private void writeAErequest(MessageAErequest msg) throws IOException{
+		SessionHistory.SentBase base = (peer == null ? null : history.getSent(peer));
+		long baseId = history.newBaseId();
+		BinaryCodec.writeAErequest(frameOut, msg, localParticipants, baseId, base);
+		if (peer != null && msg.getSummary().getParticipants() == localParticipants) {
+			TimestampMatrix ack = msg.getAck();
+			pendingSent = new SessionHistory.SentBase(baseId, msg.getSummary().clone(), ack.getVersion());
+		}
+	}
+
+	public Message readMessage() throws IOException{
+		if (remote == null) {
+			remote = BinaryCodec.readHeader(in);
+			if (remoteOriginator) {
+				peer = "from:" + remote.serverId;
+			}
+		}
+		// at most MAX_FRAME_SIZE
+		int length = BinaryCodec.readLength(in);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		DataInputStream frameIn = new DataInputStream(new ByteArrayInputStream(bytes));
+		int tag = frameIn.readUnsignedByte();
+		if (tag == BinaryCodec.DEFLATED) {
+			frameIn = new DataInputStream(new ByteArrayInputStream(inflate(frameIn)));
+			tag = frameIn.readUnsignedByte();
+			if (tag == BinaryCodec.DEFLATED) {
+				throw new StreamCorruptedException("TSAE compressed frame inside a compressed frame");
+			}
+		}
+		if (tag == BinaryCodec.AE_REQUEST) {
+			return readAErequest(frameIn);
+		}
+		return BinaryCodec.readMessage(tag, frameIn, remote.participants);
+	}
+
+	private MessageAErequest readAErequest(DataInputStream frameIn) throws IOException{
+		long baseId = BinaryCodec.readVarint(frameIn);
+		long deltaOf = BinaryCodec.readVarint(frameIn);
+		TimestampVector summary;
+		TimestampMatrix ack;
+		if (deltaOf == 0) {
+			summary = BinaryCodec.readVector(frameIn, remote.participants);
+			ack = BinaryCodec.readMatrix(frameIn, remote.participants);
+		} else {
+			SessionHistory.ReceivedBase base = history.getReceived(peer);
+			if (base == null || base.incarnation != remote.incarnation || base.id != deltaOf - 1
+					|| base.summary.getParticipants() != remote.participants) {
+				throw new StreamCorruptedException("AE request encoded as a delta of an unknown base");
+			}
+			summary = BinaryCodec.readVectorDelta(frameIn, base.summary);
+			ack = BinaryCodec.readMatrixDelta(frameIn, remote.participants);
+		}
+		pendingReceived = new SessionHistory.ReceivedBase(remote.incarnation, baseId, summary.clone());
+		return new MessageAErequest(summary, ack);
+	}
+
+	public boolean isReusable(){
+		return reusable && remote != null && (remote.flags & BinaryCodec.FLAG_REUSABLE) != 0;
+	}
+
+	public boolean acceptsBatches(){
+		return remote != null && (remote.flags & BinaryCodec.FLAG_BATCH) != 0;
+	}
+
+	public void sessionCompleted(){
+		if (peer != null) {
+			history.completed(peer, pendingSent, pendingReceived);
+		}
+		pendingSent = null;
+		pendingReceived = null;
+	}
+
+	public void sessionFailed(){
+		if (peer != null) {
+			history.forget(peer);
+		}
+		pendingSent = null;
+		pendingReceived = null;
+	}
+
+	/**
+	 * frame being written, whose bytes can be compressed without copying them
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		byte[] buffer(){
+			return buf;
+		}
+
+		/**
+		 * appends the next output of deflater
+		 */
+		void deflate(Deflater deflater){
+			if (count == buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, 64));
+			}
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+	}
+}
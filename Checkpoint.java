@@ -0,0 +1,199 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import recipes_service.data.Operation;
+import recipes_service.data.Recipes;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * State of a server saved to disk: its recipes, summary, ack, the
+ * sequence number of its last recipe and the operations of its log
+ * covered by the summary. The recipes reflect, at least, every
+ * operation covered by the summary. The operations are the ones not yet
+ * purged: some participants may still miss them, so they are restored
+ * in the log to be sent in later sessions.
+ *
+ * A checkpoint is written to a temporary file, forced to disk and
+ * renamed over the previous one, so the file in the directory is always
+ * a complete checkpoint.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class Checkpoint {
+
+	private static final String FILE_NAME = "checkpoint";
+	private static final String TEMPORARY_FILE_NAME = "checkpoint.tmp";
+	// version 1 has no operations
+	private static final int VERSION = 2;
+
+	// serialized recipes
+	private byte[] recipes;
+	private TimestampVector summary;
+	private TimestampMatrix ack;
+	private long seqnum;
+	private List<Operation> operations;
+
+	/**
+	 * @param recipes: serialized recipes (see serialize)
+	 * @param summary
+	 * @param ack
+	 * @param seqnum: sequence number of the last recipe timestamped by the server
+	 * @param operations: operations of the log covered by summary, host by host and in order
+	 */
+	Checkpoint(byte[] recipes, TimestampVector summary, TimestampMatrix ack, long seqnum, List<Operation> operations){
+		this.recipes = recipes;
+		this.summary = summary;
+		this.ack = ack;
+		this.seqnum = seqnum;
+		this.operations = operations;
+	}
+
+	/**
+	 * @param recipes: they must not change while they are serialized
+	 * @return recipes serialized
+	 * @throws IOException
+	 */
+	static byte[] serialize(Recipes recipes) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(recipes);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	Recipes getRecipes() throws IOException{
+		return deserialize(recipes);
+	}
+
+	/**
+	 * @param recipes: recipes serialized by serialize
+	 * @return a new copy of the recipes
+	 * @throws IOException
+	 */
+	static Recipes deserialize(byte[] recipes) throws IOException{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(recipes));
+		try {
+			return (Recipes) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new InvalidObjectException("checkpoint of unknown recipes: " + e.getMessage());
+		}
+	}
+
+	TimestampVector getSummary(){
+		return summary;
+	}
+
+	TimestampMatrix getAck(){
+		return ack;
+	}
+
+	long getSeqnum(){
+		return seqnum;
+	}
+
+	List<Operation> getOperations(){
+		return operations;
+	}
+
+	/**
+	 * writes the checkpoint in directory, replacing the previous one
+	 * @param directory
+	 * @throws IOException
+	 */
+	void write(File directory) throws IOException{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create checkpoint directory " + directory);
+		}
+		File temporary = new File(directory, TEMPORARY_FILE_NAME);
+		FileOutputStream file = new FileOutputStream(temporary);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file));
+			out.writeInt(VERSION);
+			out.writeInt(recipes.length);
+			out.write(recipes);
+			out.writeObject(summary);
+			out.writeObject(ack);
+			out.writeLong(seqnum);
+			out.writeObject(new ArrayList<Operation>(operations));
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		Files.move(temporary.toPath(), new File(directory, FILE_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param directory
+	 * @return the checkpoint saved in directory, or null if there is none
+	 * @throws IOException
+	 */
+	static Checkpoint read(File directory) throws IOException{
+		File file = new File(directory, FILE_NAME);
+		if (!file.isFile()) {
+			return null;
+		}
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new InvalidObjectException("unknown checkpoint version " + version);
+			}
+			byte[] recipes = new byte[in.readInt()];
+			in.readFully(recipes);
+			TimestampVector summary = (TimestampVector) in.readObject();
+			TimestampMatrix ack = (TimestampMatrix) in.readObject();
+			long seqnum = in.readLong();
+			List<Operation> operations = new ArrayList<Operation>();
+			if (version >= 2) {
+				for (Object op : (List<?>) in.readObject()) {
+					operations.add((Operation) op);
+				}
+			}
+			return new Checkpoint(recipes, summary, ack, seqnum, operations);
+		} catch (ClassNotFoundException e) {
+			throw new InvalidObjectException("checkpoint of unknown classes: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+}
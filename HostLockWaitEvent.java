@@ -0,0 +1,70 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event of a wait for the lock that serializes the
+ * operations originated at a host (see ServerData.hostLock). Only waits
+ * longer than the threshold of the recording (1 ms by default) are
+ * written.
+ *
+ * The event begins before entering the lock; acquired ends it once
+ * inside, and commit is called after leaving it.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@Name("recipes_service.HostLockWait")
+@Label("Host Lock Wait")
+@Category({"Recipes Service", "TSAE"})
+@Description("Wait to update the log, summary and recipes of a host")
+@Threshold("1 ms")
+public class HostLockWaitEvent extends Event {
+
+	@Label("Host")
+	@Description("Host whose operations are serialized by the lock")
+	String host;
+
+	@Label("Local Write")
+	@Description("The waiting thread timestamps a local write, instead of executing a received operation")
+	boolean localWrite;
+
+	HostLockWaitEvent(String host, boolean localWrite){
+		this.host = host;
+		this.localWrite = localWrite;
+		begin();
+	}
+
+	/**
+	 * called once the lock is held
+	 */
+	void acquired(){
+		end();
+	}
+}
@@ -0,0 +1,249 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.data_structures;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import recipes_service.data.Operation;
+
+/**
+ * Operations issued by one member of the group, stored in
+ * fixed-size segments. Operations of a host are appended with
+ * consecutive sequence numbers, so the position of an operation
+ * follows from its sequence number, and the operations that can be
+ * purged are always a prefix: purging advances a head pointer and
+ * drops the segments that become empty.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+class HostLog implements Serializable{
+
+	private static final long serialVersionUID = 6302452962563146208L;
+
+	static final int SEGMENT_SIZE = 256;
+
+	// operations further than REORDER_WINDOW from the last one appended are not kept
+	static final int REORDER_WINDOW = 1024;
+
+	private List<Operation[]> segments = new ArrayList<Operation[]>();
+	// position of the first retained operation in the first segment
+	private int head = 0;
+	// number of used positions in the last segment
+	private int tail = SEGMENT_SIZE;
+	// sequence number of the first retained operation
+	private long firstSeq = 0;
+	// sequence number of the last operation appended
+	private long lastSeq = -1;
+	// operations received before the ones that precede them, by sequence number (null if none)
+	private transient TreeMap<Long, Operation> pending = null;
+
+	/**
+	 * appends op if its sequence number follows the last one
+	 * @param op
+	 * @return true if op is appended, false otherwise
+	 */
+	synchronized boolean add(Operation op){
+		if (op.getTimestamp().getSeqnumber() != lastSeq + 1) {
+			return false;
+		}
+		if (segments.isEmpty() || tail == SEGMENT_SIZE) {
+			segments.add(new Operation[SEGMENT_SIZE]);
+			tail = 0;
+		}
+		segments.get(segments.size() - 1)[tail++] = op;
+		lastSeq++;
+		return true;
+	}
+
+	/**
+	 * appends op if its sequence number follows the last one, and then
+	 * the operations kept that follow it. If op comes after a gap (within
+	 * REORDER_WINDOW), it is kept until the operations before it arrive
+	 * @param op
+	 * @param added: receives the operations appended, in order
+	 * @return false if op is discarded (already appended or too far ahead)
+	 */
+	synchronized boolean addOrKeep(Operation op, List<Operation> added){
+		long seq = op.getTimestamp().getSeqnumber();
+		if (seq <= lastSeq || seq > lastSeq + REORDER_WINDOW) {
+			return false;
+		}
+		if (seq > lastSeq + 1) {
+			if (pending == null) {
+				pending = new TreeMap<Long, Operation>();
+			}
+			pending.put(seq, op);
+			return true;
+		}
+		add(op);
+		added.add(op);
+		while (pending != null && !pending.isEmpty()) {
+			Map.Entry<Long, Operation> first = pending.firstEntry();
+			if (first.getKey() > lastSeq + 1) {
+				break;
+			}
+			pending.pollFirstEntry();
+			if (add(first.getValue())) {
+				added.add(first.getValue());
+			}
+		}
+		if (pending != null && pending.isEmpty()) {
+			pending = null;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of operations kept until the ones before them arrive
+	 */
+	synchronized int pendingSize(){
+		return pending == null ? 0 : pending.size();
+	}
+
+	/**
+	 * adds to missing the retained operations with a sequence
+	 * number greater than seqnumber. The first one is located
+	 * by offset from the first retained sequence number, so the
+	 * cost only depends on the number of operations added.
+	 */
+	synchronized void collectNewer(long seqnumber, List<Operation> missing){
+		long seq = Math.max(firstSeq, seqnumber + 1);
+		if (seq > lastSeq) {
+			return;
+		}
+		int offset = head + (int) (seq - firstSeq);
+		int end = head + size();
+		int segment = offset / SEGMENT_SIZE;
+		int index = offset % SEGMENT_SIZE;
+		for (; offset < end; offset++) {
+			missing.add(segments.get(segment)[index]);
+			if (++index == SEGMENT_SIZE) {
+				index = 0;
+				segment++;
+			}
+		}
+	}
+
+	/**
+	 * copies into buffer the retained operations with sequence numbers
+	 * from fromSeq to toSeq (both included), up to buffer.length.
+	 * If the operations from fromSeq have already been purged, the copy
+	 * starts at the first retained operation.
+	 * @return number of operations copied
+	 */
+	synchronized int copy(long fromSeq, long toSeq, Operation[] buffer){
+		long seq = Math.max(fromSeq, firstSeq);
+		long last = Math.min(toSeq, lastSeq);
+		if (seq > last) {
+			return 0;
+		}
+		int count = (int) Math.min(buffer.length, last - seq + 1);
+		int offset = head + (int) (seq - firstSeq);
+		int copied = 0;
+		while (copied < count) {
+			int index = offset % SEGMENT_SIZE;
+			int length = Math.min(count - copied, SEGMENT_SIZE - index);
+			System.arraycopy(segments.get(offset / SEGMENT_SIZE), index, buffer, copied, length);
+			copied += length;
+			offset += length;
+		}
+		return count;
+	}
+
+	/**
+	 * makes an empty log accept operations from the one
+	 * following seqnumber (the previous ones are known from
+	 * elsewhere, e.g. a checkpoint)
+	 * @param seqnumber
+	 */
+	synchronized void startAfter(long seqnumber){
+		if (size() > 0 || seqnumber < lastSeq) {
+			return;
+		}
+		segments.clear();
+		head = 0;
+		tail = SEGMENT_SIZE;
+		firstSeq = seqnumber + 1;
+		lastSeq = seqnumber;
+	}
+
+	/**
+	 * @return sequence number of the last operation appended
+	 */
+	synchronized long getLastSeqnumber(){
+		return lastSeq;
+	}
+
+	/**
+	 * removes the operations with a sequence number smaller than seqnumber
+	 * @param seqnumber
+	 * @return number of operations removed
+	 */
+	synchronized int purge(long seqnumber){
+		long newFirstSeq = Math.min(seqnumber, lastSeq + 1);
+		if (newFirstSeq <= firstSeq) {
+			return 0;
+		}
+		int removed = (int) (newFirstSeq - firstSeq);
+		int offset = head + removed;
+		int emptySegments = offset / SEGMENT_SIZE;
+		if (emptySegments > 0) {
+			segments.subList(0, emptySegments).clear();
+		}
+		head = offset - emptySegments * SEGMENT_SIZE;
+		if (!segments.isEmpty()) {
+			// release the purged operations still referenced by the first segment
+			Arrays.fill(segments.get(0), 0, head, null);
+		}
+		firstSeq = newFirstSeq;
+		return removed;
+	}
+
+	/**
+	 * @return the retained operations, in order
+	 */
+	synchronized List<Operation> toList(){
+		List<Operation> operations = new ArrayList<Operation>(size());
+		for (long seq = firstSeq; seq <= lastSeq; seq++) {
+			operations.add(get(seq));
+		}
+		return operations;
+	}
+
+	/**
+	 * @return number of retained operations
+	 */
+	synchronized int size(){
+		return (int) (lastSeq - firstSeq + 1);
+	}
+
+	private Operation get(long seq){
+		int offset = head + (int) (seq - firstSeq);
+		return segments.get(offset / SEGMENT_SIZE)[offset % SEGMENT_SIZE];
+	}
+}
@@ -0,0 +1,115 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies, in nanoseconds. Each bucket holds the
+ * latencies between two consecutive powers of two, so percentiles are
+ * approximated within a factor of two. Recording does not lock.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class LatencyRecorder {
+	private static final int BUCKETS = 64;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * @param nanos: latency to record
+	 */
+	public void record(long nanos){
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount(){
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile: between 0 and 100
+	 * @return upper bound (in nanoseconds) of the latencies below the percentile, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile){
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] > 0) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * adds the latencies recorded by other
+	 * @param other
+	 */
+	public void add(LatencyRecorder other){
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.addAndGet(i, other.counts.get(i));
+		}
+	}
+
+	public void reset(){
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	public String toString(){
+		return "count=" + getCount()
+				+ " p50=" + getPercentile(50) + "ns"
+				+ " p99=" + getPercentile(99) + "ns"
+				+ " p99.9=" + getPercentile(99.9) + "ns";
+	}
+
+	private static int bucket(long nanos){
+		if (nanos <= 0) {
+			return 0;
+		}
+		return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+	}
+
+	private static long upperBound(int bucket){
+		return (bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1);
+	}
+}
@@ -20,16 +20,20 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+import recipes_service.LatencyRecorder;
 import recipes_service.data.Operation;
 
 /**
@@ -39,67 +43,142 @@ import recipes_service.data.Operation;
  */
 public class Log implements Serializable{
 
-	private static final long serialVersionUID = -4864990265268259700L;
+	private static final long serialVersionUID = -987491007609298491L;
 	/**
 	 * This class implements a log, that stores the operations
 	 * received  by a client.
-	 * They are stored in a ConcurrentHashMap (a hash table),
-	 * that stores a list of operations for each member of 
-	 * the group.
+	 * They are stored in a HostLog per member of the group,
+	 * indexed by the slot of the member in the ParticipantRegistry.
+	 * Each HostLog has its own lock, so operations of different
+	 * members are added and purged concurrently.
 	 */
-	private ConcurrentHashMap<String, List<Operation>> log = new ConcurrentHashMap<String, List<Operation>>();  
+	private ParticipantRegistry participants;
+	private HostLog[] log;
+	// journal of the operations added (null if the log is not journaled)
+	private transient OperationJournal journal = null;
+
+	// counters of the log (not serialized)
+	private transient AtomicLong rejected = new AtomicLong();
+	private transient AtomicLong purged = new AtomicLong();
+	private transient LatencyRecorder purgeTime = new LatencyRecorder();
 
 	public Log(List<String> participants){
 		// create an empty log
-		for (Iterator<String> it = participants.iterator(); it.hasNext(); ){
-			log.put(it.next(), new Vector<Operation>());
+		this.participants = ParticipantRegistry.of(participants);
+		this.log = new HostLog[this.participants.size()];
+		for (int i = 0; i < log.length; i++){
+			log[i] = new HostLog();
 		}
 	}
 
 	/**
-	 * inserts an operation into the log. Operations are 
-	 * inserted in order. If the last operation for 
-	 * the user is not the previous operation than the one 
+	 * journals the operations added to the log from now on
+	 * and truncates the journal when the log is purged
+	 * @param journal: null to stop journaling
+	 */
+	public void setJournal(OperationJournal journal){
+		this.journal = journal;
+	}
+
+	/**
+	 * inserts an operation into the log. Operations are
+	 * inserted in order. If the last operation for
+	 * the user is not the previous operation than the one
 	 * being inserted, the insertion will fail.
-	 * 
+	 *
 	 * @param op
 	 * @return true if op is inserted, false otherwise.
 	 */
-	public synchronized boolean add(Operation op){
-		
-		Timestamp timestamp = op.getTimestamp();
-		String hostId = timestamp.getHostid();
-		       
-		Timestamp lastTimestamp;
-				
-        List<Operation> operations = this.log.get(hostId);
-
-        if (operations == null || operations.isEmpty()) {
-        	lastTimestamp = null;
-        } else {
-        	lastTimestamp = operations.get(operations.size() - 1).getTimestamp();
-        }
-         
-        long timestampDifference = op.getTimestamp().compare(lastTimestamp);
-        
-        /**
-         * Comprueba si la operacin insertada es la siguiente a continuacin. 
-         * En caso afirmativo, lo inserta y devuelve verdadero para que 
-         * pueda purgarse eventualmente ms tarde,
-         * de lo contrario devolver falso para que se mantenga ms tarde.
-         * 
-         */
-        
-        if ((lastTimestamp == null && timestampDifference == 0) || (lastTimestamp != null && timestampDifference == 1)) {
-            this.log.get(hostId).add(op);
-            return true;
-        } else {
-            return false;
-        }
-	}
-		// return generated automatically. Remove it when implementing your solution 
-
-	
+	public boolean add(Operation op){
+		int slot = participants.indexOf(op.getTimestamp().getHostOrdinal());
+		if (slot < 0) {
+			return false;
+		}
+		if (journal == null) {
+			if (log[slot].add(op)) {
+				return true;
+			}
+			rejected.incrementAndGet();
+			return false;
+		}
+		// serialized first: an operation the journal does not accept is not added
+		byte[] record = journal.record(op);
+		// journaled under the lock of the host, so the journal keeps the order of the log
+		synchronized (log[slot]) {
+			if (!log[slot].add(op)) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			journal.append(op, record);
+			return true;
+		}
+	}
+
+	/**
+	 * Makes the log of each member that holds no operations accept
+	 * operations from the one following its sequence number in last.
+	 * Used when the state up to last is recovered from a checkpoint.
+	 * @param last
+	 */
+	public void startAfter(TimestampVector last){
+		for (int i = 0; i < log.length; i++) {
+			long seqnumber = lastSeqnumber(last, i);
+			if (seqnumber != Timestamp.NULL_TIMESTAMP_SEQ_NUMBER) {
+				log[i].startAfter(seqnumber);
+			}
+		}
+	}
+
+	/**
+	 * inserts an operation received from another member. If the
+	 * previous operation of its member is missing, the operation is
+	 * kept (a bounded number per member) and inserted as soon as the
+	 * gap is filled, so operations received out of order do not need
+	 * to be sent again.
+	 *
+	 * @param op
+	 * @return the operations inserted, in order: op followed by
+	 * the operations kept that it made contiguous, or none if op is
+	 * kept or already known
+	 */
+	public List<Operation> addOrKeep(Operation op){
+		List<Operation> added = new ArrayList<Operation>(1);
+		int slot = participants.indexOf(op.getTimestamp().getHostOrdinal());
+		if (slot < 0) {
+			rejected.incrementAndGet();
+			return added;
+		}
+		OperationJournal journal = this.journal;
+		// operations kept for later have been accepted by the journal when they arrived
+		byte[] record = (journal == null ? null : journal.record(op));
+		synchronized (log[slot]) {
+			if (!log[slot].addOrKeep(op, added)) {
+				rejected.incrementAndGet();
+			}
+			if (journal != null) {
+				for (Operation inserted : added) {
+					if (inserted == op) {
+						journal.append(inserted, record);
+					} else {
+						journal.append(inserted);
+					}
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @return number of operations kept by addOrKeep until the ones before them arrive
+	 */
+	public int pendingSize(){
+		int size = 0;
+		for (int i = 0; i < log.length; i++) {
+			size += log[i].pendingSize();
+		}
+		return size;
+	}
+
 	/**
 	 * Checks the received summary (sum) and determines the operations
 	 * contained in the log that have not been seen by
@@ -108,122 +187,204 @@ public class Log implements Serializable{
 	 * @param sum
 	 * @return list of operations
 	 */
-	public synchronized List<Operation> listNewer(TimestampVector sum){
-		
-	       List<Operation> missingList = new Vector<Operation>();
-	        /**
-	         * va a travs de todos los hosts del registro
-	         */
-	        for (String node : this.log.keySet()) {
-	            List<Operation> operations = this.log.get(node);
-	            Timestamp timestampToCompare = sum.getLast(node);
-	            /**
-	        	 * Va a travs de todas las operaciones por host y recopila
-	        	 * todos los que son ms pequeos que el timestampVector, 
-	        	 * pasado para el host en concreto.
-	        	 * 
-	        	 */
-	            for (Operation op : operations) {
-	                if (op.getTimestamp().compare(timestampToCompare) > 0) {
-	                    missingList.add(op);
-	                }
-	            }
-	        }
-	        return missingList;
-	        
-	}
-		// return generated automatically. Remove it when implementing your solution 
-
-	
+	public List<Operation> listNewer(TimestampVector sum){
+		List<Operation> missingList = new Vector<Operation>();
+		for (int i = 0; i < log.length; i++) {
+			log[i].collectNewer(lastSeqnumber(sum, i), missingList);
+		}
+		return missingList;
+	}
+
+	/**
+	 * Returns an iterator over the operations contained in the log
+	 * that have not been seen by the proprietary of the summary (sum),
+	 * host by host and in order.
+	 * Operations are fetched in small batches, taking the lock of
+	 * one host at a time, so the missing operations are never
+	 * materialized in a single list. Operations added to a host
+	 * after the iterator reached it are not returned; operations
+	 * purged before being fetched are skipped.
+	 * @param sum
+	 * @return iterator over the missing operations
+	 */
+	public Iterator<Operation> newerIterator(TimestampVector sum){
+		return new NewerOperations(sum);
+	}
+
 	/**
 	 * Removes from the log the operations that have
 	 * been acknowledged by all the members
 	 * of the group, according to the provided
-	 * ackSummary. 
+	 * ackSummary.
 	 * @param ack: ackSummary.
 	 */
-	public synchronized void purgeLog(TimestampMatrix ack){
-		/**
-         * Crea un minTimestampVector de la matriz. Solamente los registros ms viejos 
-         * que este sern purgados ms adelante. MinTimestampVector garantiza que todos 
-         * los clientes han recibido la informacin hasta esa fecha.
-         * 
-         */		
-		 TimestampVector minTimestampVector = ack.minTimestampVector();
-
-		 /**
-	      * Va a travs de todas las entradas del mapa de registros.
-	      * 
-	      */
-		 
-		 for (Entry<String, List<Operation>> entry : log.entrySet()) {
-	            String participant = entry.getKey();
-	            List<Operation> operations = entry.getValue();
-	            Timestamp lastTimestamp = minTimestampVector.getLast(participant);
-	            /**
-	             * Toma la ltima marca de tiempo para el nodo/host/participante. 
-	             * Si no hay ninguno, lo ignora y contina con el bucle
-	             * 
-	             */	            
-	            if (lastTimestamp == null) {
-	                continue;
-	            }
-	            /**
-	             * Va de atrs hacia adelante a travs de todas las operaciones 
-	             * y elimina las que son ms antiguas que el ltimo Timestamp recibido.
-	             * 
-	             */	            
-	            for (int i = operations.size() - 1; i >= 0; i--) {
-	                Operation op = operations.get(i);
-
-	                if (op.getTimestamp().compare(lastTimestamp) < 0) {
-	                    operations.remove(i);
-	                }
-	            }
-	        }	
-	}
-
-	
+	public void purgeLog(TimestampMatrix ack){
+		LogPurgeEvent event = new LogPurgeEvent();
+		event.begin();
+		long start = System.nanoTime();
+		// only the operations older than the ones known by all members are purged
+		TimestampVector minTimestampVector = ack.minTimestampVector();
+		if (minTimestampVector == null) {
+			return;
+		}
+		boolean aligned = minTimestampVector.getParticipants() == participants;
+		int removed = 0;
+		for (int i = 0; i < log.length; i++) {
+			if (aligned) {
+				removed += log[i].purge(minTimestampVector.getSeqnumber(i));
+			} else {
+				Timestamp lastTimestamp = minTimestampVector.getLast(participants.getId(i));
+				if (lastTimestamp != null) {
+					removed += log[i].purge(lastTimestamp.getSeqnumber());
+				}
+			}
+		}
+		purged.addAndGet(removed);
+		purgeTime.record(System.nanoTime() - start);
+		if (journal != null) {
+			journal.truncate(minTimestampVector);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.purgedOperations = removed;
+			event.hosts = log.length;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return number of operations that could not be inserted (out of
+	 * order or already in the log)
+	 */
+	public long getRejectedOperations(){
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of operations removed by purgeLog
+	 */
+	public long getPurgedOperations(){
+		return purged.get();
+	}
+
+	/**
+	 * @return duration of the calls to purgeLog
+	 */
+	public LatencyRecorder getPurgeTime(){
+		return purgeTime;
+	}
+
+	/**
+	 * @return number of operations retained of each member
+	 */
+	public Map<String, Long> getDepths(){
+		Map<String, Long> depths = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < log.length; i++) {
+			depths.put(participants.getId(i), (long) log[i].size());
+		}
+		return depths;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		rejected = new AtomicLong();
+		purged = new AtomicLong();
+		purgeTime = new LatencyRecorder();
+	}
+
+	/**
+	 * @return sequence number of the last operation of the member in
+	 * slot that the proprietary of sum has seen
+	 */
+	private long lastSeqnumber(TimestampVector sum, int slot){
+		if (sum.getParticipants() == participants) {
+			return sum.getSeqnumber(slot);
+		}
+		Timestamp last = sum.getLast(participants.getId(slot));
+		return last == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : last.getSeqnumber();
+	}
+
+	/**
+	 * Iterator returned by newerIterator
+	 */
+	private class NewerOperations implements Iterator<Operation>{
+		private static final int BATCH_SIZE = 64;
+
+		private final TimestampVector sum;
+		private final Operation[] batch = new Operation[BATCH_SIZE];
+		private int position = 0;
+		private int size = 0;
+		private int slot = -1;
+		private long nextSeq;
+		private long lastSeq;
+
+		NewerOperations(TimestampVector sum){
+			this.sum = sum;
+		}
+
+		public boolean hasNext(){
+			while (position == size) {
+				if (slot == log.length) {
+					return false;
+				}
+				size = slot < 0 ? 0 : log[slot].copy(nextSeq, lastSeq, batch);
+				position = 0;
+				if (size > 0) {
+					nextSeq = batch[size - 1].getTimestamp().getSeqnumber() + 1;
+				} else if (++slot < log.length) {
+					// move to the next host
+					nextSeq = lastSeqnumber(sum, slot) + 1;
+					lastSeq = log[slot].getLastSeqnumber();
+				}
+			}
+			return true;
+		}
+
+		public Operation next(){
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Operation op = batch[position];
+			batch[position++] = null;
+			return op;
+		}
+	}
+
 	/**
 	 * equals
 	 */
 	@Override
-	public synchronized boolean equals(Object obj) {
-		
-//		System.out.println("Inicio equals log");
-        
+	public boolean equals(Object obj) {
 		if (obj == null) {
-            return false;
-        } else if (!(obj instanceof Log)) {
-            return false;
-        }
-
-        Log other = (Log) obj;
-        
-        if (!other.log.equals(this.log)) {
-        	return false;
-
-        } else {
-            return this.log.equals(other.log);
-        }        
+			return false;
+		} else if (!(obj instanceof Log)) {
+			return false;
+		}
+		Log other = (Log) obj;
+		if (other.participants != this.participants
+				&& !other.participants.getIds().equals(this.participants.getIds())) {
+			return false;
+		}
+		for (int i = 0; i < log.length; i++) {
+			if (!log[i].toList().equals(other.log[i].toList())) {
+				return false;
+			}
+		}
+		return true;
 	}
-		// return generated automatically. Remove it when implementing your solution 
 
 
 	/**
 	 * toString
 	 */
 	@Override
-	public synchronized String toString() {
+	public String toString() {
 		String name="";
-		for(Enumeration<List<Operation>> en=log.elements();
-		en.hasMoreElements(); ){
-		List<Operation> sublog=en.nextElement();
-		for(ListIterator<Operation> en2=sublog.listIterator(); en2.hasNext();){
-			name+=en2.next().toString()+"\n";
+		for(int i=0; i<log.length; i++){
+			for(Operation op : log[i].toList()){
+				name+=op.toString()+"\n";
+			}
 		}
-	}
-		
 		return name;
 	}
 
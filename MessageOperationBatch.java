@@ -0,0 +1,93 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.util.List;
+import java.util.Vector;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.OperationType;
+import recipes_service.data.RemoveOperation;
+
+/**
+ * Carries several operations in a single frame of a TSAE session.
+ * It has the same type as a MessageOperation (MsgType.OPERATION):
+ * receivers tell them apart by class.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class MessageOperationBatch extends Message{
+
+	private static final long serialVersionUID = -2193658164577932316L;
+
+	// approximate size of an operation, not counting the text of the recipe
+	private static final int OPERATION_OVERHEAD = 64;
+
+	private List<Operation> operations;
+
+	public MessageOperationBatch(List<Operation> operations){
+		this.operations = operations;
+	}
+
+	public MessageOperationBatch(){
+		this(new Vector<Operation>());
+	}
+
+	public List<Operation> getOperations(){
+		return operations;
+	}
+
+	public void add(Operation op){
+		operations.add(op);
+	}
+
+	public int size(){
+		return operations.size();
+	}
+
+	/**
+	 * @param op
+	 * @return an estimation of the number of bytes needed to send op
+	 */
+	public static int estimateSize(Operation op){
+		int size = OPERATION_OVERHEAD;
+		if (op.getType() == OperationType.ADD) {
+			AddOperation addOp = (AddOperation) op;
+			size += addOp.getRecipe().getTitle().length() + addOp.getRecipe().getRecipe().length();
+		} else {
+			size += ((RemoveOperation) op).getRecipeTitle().length();
+		}
+		return size;
+	}
+
+	@Override
+	public MsgType type() {
+		return MsgType.OPERATION;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageOperationBatch [" + operations.size() + " operations]";
+	}
+}
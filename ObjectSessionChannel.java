@@ -0,0 +1,69 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+
+import recipes_service.communication.Message;
+
+/**
+ * Session channel that sends messages with Java serialization
+ * (the original TSAE session protocol).
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+class ObjectSessionChannel implements SessionChannel {
+	private ObjectInputStream_DS in;
+	private ObjectOutputStream_DS out;
+
+	ObjectSessionChannel(ObjectInputStream_DS in, ObjectOutputStream_DS out){
+		this.in = in;
+		this.out = out;
+	}
+
+	public void writeMessage(Message msg) throws IOException{
+		out.writeObject(msg);
+	}
+
+	public Message readMessage() throws IOException, ClassNotFoundException{
+		return (Message) in.readObject();
+	}
+
+	public boolean isReusable(){
+		return false;
+	}
+
+	public boolean acceptsBatches(){
+		// peers using Java serialization may not know MessageOperationBatch
+		return false;
+	}
+
+	public void sessionCompleted(){
+	}
+
+	public void sessionFailed(){
+	}
+}
@@ -0,0 +1,451 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.data_structures;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import recipes_service.data.Operation;
+
+/**
+ * Write-ahead journal of the operations added to a Log.
+ *
+ * Operations are appended to memory-mapped segment files of
+ * SEGMENT_SIZE bytes, named by their order of creation. Each record is
+ * its length, a CRC32 of its contents and the serialized operation; a
+ * zero length marks the end of the written records. A background
+ * thread forces the mapped segments to disk every syncInterval
+ * milliseconds (group commit): writers that need their operation to be
+ * durable wait for the next force (awaitDurable).
+ *
+ * Whole segments are deleted once all their operations have been
+ * purged from the log and are covered by the retention floor (the
+ * summary of the last checkpoint). Without a retention floor no
+ * segment is deleted, so the journal holds every operation.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class OperationJournal {
+
+	static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".journal";
+	// length and crc of a record
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * a segment file. Only the segments still being written or
+	 * waiting to be forced keep their buffer
+	 */
+	private static class Segment {
+		final long number;
+		final File file;
+		MappedByteBuffer buffer;
+		// sequence number of the last operation of each participant in the segment
+		final long[] lastSeq;
+
+		Segment(long number, File file, int participants){
+			this.number = number;
+			this.file = file;
+			this.lastSeq = new long[participants];
+			Arrays.fill(lastSeq, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+		}
+	}
+
+	private File directory;
+	private ParticipantRegistry participants;
+
+	// segments, oldest first; the last one is being written
+	private List<Segment> segments = new ArrayList<Segment>();
+	// segments written since the last force
+	private List<Segment> dirty = new ArrayList<Segment>();
+	private List<Operation> recovered = new ArrayList<Operation>();
+
+	// records appended and records forced to disk
+	private long appended = 0;
+	private long durable = 0;
+
+	private TimestampVector retentionFloor = null;
+	private Thread flusher;
+	private volatile boolean closed = false;
+
+	/**
+	 * opens (or creates) the journal kept in directory and reads the
+	 * operations it holds (see getRecovered)
+	 * @param directory
+	 * @param participants: members of the group
+	 * @param syncInterval: milliseconds between forces of the journal to disk
+	 * @return the journal
+	 * @throws IOException
+	 */
+	public static OperationJournal open(File directory, List<String> participants, long syncInterval) throws IOException{
+		OperationJournal journal = new OperationJournal(directory, ParticipantRegistry.of(participants));
+		journal.scan();
+		journal.startFlusher(syncInterval);
+		return journal;
+	}
+
+	private OperationJournal(File directory, ParticipantRegistry participants) throws IOException{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create journal directory " + directory);
+		}
+		this.directory = directory;
+		this.participants = participants;
+	}
+
+	/**
+	 * @return the operations read from disk when the journal was opened,
+	 * in the order they were appended
+	 */
+	public List<Operation> getRecovered(){
+		return recovered;
+	}
+
+	/**
+	 * releases the operations read from disk when the journal was opened
+	 */
+	public void clearRecovered(){
+		recovered = new ArrayList<Operation>();
+	}
+
+	/**
+	 * appends op to the journal. It becomes durable with the next force
+	 * @param op
+	 */
+	public void append(Operation op){
+		append(op, serialize(op));
+	}
+
+	/**
+	 * serializes op as it is appended to the journal. Called before op is
+	 * added to the log, so that an operation the journal does not accept
+	 * is not added either
+	 * @param op
+	 * @return the record of op
+	 * @throws IllegalArgumentException if op is too large for a segment
+	 */
+	public byte[] record(Operation op){
+		return serialize(op);
+	}
+
+	/**
+	 * appends op, already serialized by record, to the journal
+	 * @param op
+	 * @param record
+	 */
+	public void append(Operation op, byte[] record){
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("operation journal closed");
+			}
+			Segment segment = segments.get(segments.size() - 1);
+			if (segment.buffer.remaining() < RECORD_HEADER_SIZE + record.length + 4) {
+				segment = newSegment();
+			}
+			MappedByteBuffer buffer = segment.buffer;
+			buffer.putInt(record.length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(record);
+			// end mark, overwritten by the next record
+			buffer.putInt(buffer.position(), 0);
+			int slot = participants.indexOf(op.getTimestamp().getHostOrdinal());
+			if (slot >= 0) {
+				segment.lastSeq[slot] = Math.max(segment.lastSeq[slot], op.getTimestamp().getSeqnumber());
+			}
+			if (!dirty.contains(segment)) {
+				dirty.add(segment);
+			}
+			appended++;
+		}
+	}
+
+	/**
+	 * waits until every operation appended before the call has been forced to disk
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitDurable() throws InterruptedException{
+		long target = appended;
+		while (durable < target && !closed) {
+			wait();
+		}
+	}
+
+	/**
+	 * operations with a sequence number up to the ones of floor can be
+	 * recovered without the journal (they are in a checkpoint)
+	 * @param floor
+	 */
+	public synchronized void setRetentionFloor(TimestampVector floor){
+		this.retentionFloor = floor;
+	}
+
+	/**
+	 * deletes the segments whose operations all have a sequence number
+	 * smaller than the one in purged (they have been purged from the log)
+	 * and are covered by the retention floor
+	 * @param purged
+	 */
+	public void truncate(TimestampVector purged){
+		List<Segment> deleted = new ArrayList<Segment>();
+		synchronized (this) {
+			if (retentionFloor == null || purged == null) {
+				return;
+			}
+			// the segment being written is never deleted
+			while (segments.size() > 1 && isCovered(segments.get(0), purged)) {
+				Segment segment = segments.remove(0);
+				if (dirty.contains(segment)) {
+					segments.add(0, segment);
+					break;
+				}
+				deleted.add(segment);
+			}
+		}
+		for (Segment segment : deleted) {
+			segment.buffer = null;
+			segment.file.delete();
+		}
+	}
+
+	private boolean isCovered(Segment segment, TimestampVector purged){
+		for (int i = 0; i < segment.lastSeq.length; i++) {
+			if (segment.lastSeq[i] == Timestamp.NULL_TIMESTAMP_SEQ_NUMBER) {
+				continue;
+			}
+			Timestamp purgedTimestamp = purged.getLast(participants.getId(i));
+			Timestamp floorTimestamp = retentionFloor.getLast(participants.getId(i));
+			if (purgedTimestamp == null || segment.lastSeq[i] >= purgedTimestamp.getSeqnumber()
+					|| floorTimestamp == null || segment.lastSeq[i] > floorTimestamp.getSeqnumber()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * forces the operations appended to disk and wakes up the writers waiting for them
+	 */
+	public void force(){
+		long target;
+		List<Segment> toForce;
+		synchronized (this) {
+			target = appended;
+			toForce = new ArrayList<Segment>(dirty);
+			dirty.clear();
+		}
+		for (Segment segment : toForce) {
+			MappedByteBuffer buffer = segment.buffer;
+			if (buffer != null) {
+				buffer.force();
+			}
+		}
+		synchronized (this) {
+			Segment last = segments.get(segments.size() - 1);
+			for (Segment segment : toForce) {
+				if (segment != last && !dirty.contains(segment)) {
+					// full segment: its mapping is no longer needed
+					segment.buffer = null;
+				}
+			}
+			durable = Math.max(durable, target);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * forces the journal and stops its background thread
+	 */
+	public void close(){
+		force();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		flusher.interrupt();
+	}
+
+	private void startFlusher(final long syncInterval){
+		flusher = new Thread("OperationJournalFlusher") {
+			public void run(){
+				while (!closed) {
+					try {
+						Thread.sleep(syncInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					force();
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * reads the existing segments and opens the segment to write. Records
+	 * end at the first torn or corrupt one: the segments after it are deleted
+	 */
+	private void scan() throws IOException{
+		File[] files = directory.listFiles();
+		List<Long> numbers = new ArrayList<Long>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+					try {
+						numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// not a segment
+					}
+				}
+			}
+		}
+		java.util.Collections.sort(numbers);
+		boolean intact = true;
+		for (Long number : numbers) {
+			File file = segmentFile(number);
+			if (!intact) {
+				if (!file.delete()) {
+					throw new IOException("cannot delete journal segment " + file);
+				}
+				continue;
+			}
+			Segment segment = new Segment(number, file, participants.size());
+			segment.buffer = map(segment.file);
+			intact = readRecords(segment);
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			newSegment();
+		}
+		// only the last segment is written
+		for (int i = 0; i < segments.size() - 1; i++) {
+			segments.get(i).buffer = null;
+		}
+	}
+
+	/**
+	 * reads the records of a segment, leaving its buffer positioned after the last valid one
+	 * @return false if the records end with a torn or corrupt one
+	 */
+	private boolean readRecords(Segment segment){
+		MappedByteBuffer buffer = segment.buffer;
+		boolean intact = true;
+		while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			int crc = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining()) {
+				// a zero length is the end mark
+				intact = (length == 0);
+				buffer.position(start);
+				break;
+			}
+			byte[] record = new byte[length];
+			buffer.get(record);
+			CRC32 check = new CRC32();
+			check.update(record);
+			Operation op = ((int) check.getValue() == crc ? deserialize(record) : null);
+			if (op == null) {
+				// torn write: records end here
+				intact = false;
+				buffer.position(start);
+				break;
+			}
+			recovered.add(op);
+			int slot = participants.indexOf(op.getTimestamp().getHostOrdinal());
+			if (slot >= 0) {
+				segment.lastSeq[slot] = Math.max(segment.lastSeq[slot], op.getTimestamp().getSeqnumber());
+			}
+		}
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(buffer.position(), 0);
+		}
+		return intact;
+	}
+
+	private Segment newSegment(){
+		long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+		Segment segment = new Segment(number, segmentFile(number), participants.size());
+		try {
+			segment.buffer = map(segment.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		segments.add(segment);
+		return segment;
+	}
+
+	private File segmentFile(long number){
+		return new File(directory, PREFIX + String.format("%016d", number) + SUFFIX);
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping remains valid once the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] serialize(Operation op){
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(op);
+			out.close();
+			if (bytes.size() > SEGMENT_SIZE - RECORD_HEADER_SIZE - 4) {
+				throw new IllegalArgumentException("operation too large for the journal: " + bytes.size() + " bytes");
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Operation deserialize(byte[] record){
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record));
+			return (Operation) in.readObject();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageOperation;
+import recipes_service.communication.MessageOperationBatch;
+import recipes_service.communication.MsgType;
+import recipes_service.data.Operation;
+
+/**
+ * Sends and receives the operations exchanged in a TSAE session.
+ * Operations are sent one per MessageOperation, or grouped in
+ * MessageOperationBatch frames when a batch size is configured and
+ * the channel says the peer accepts them (SessionChannel.acceptsBatches).
+ * Both kinds of frames are always accepted on reception.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+final class OperationTransfer {
+
+	private OperationTransfer(){
+	}
+
+	/**
+	 * sends all the operations of the iterator
+	 * @param channel
+	 * @param operations
+	 * @param batchSize: maximum number of operations per frame. When
+	 * smaller than 2, or when the peer does not accept batches, a
+	 * MessageOperation is sent for each operation (the only format
+	 * understood by older peers)
+	 * @param batchBytes: approximate maximum size of a frame
+	 * @return number of operations sent
+	 * @throws IOException
+	 */
+	static int send(SessionChannel channel, Iterator<Operation> operations, int batchSize, int batchBytes) throws IOException{
+		int sent = 0;
+		while (operations.hasNext()) {
+			sent += sendFrame(channel, operations, batchSize, batchBytes);
+		}
+		return sent;
+	}
+
+	/**
+	 * sends the next frame of operations of the iterator, which has at least one
+	 * @param channel
+	 * @param operations
+	 * @param batchSize: see send
+	 * @param batchBytes: see send
+	 * @return number of operations sent
+	 * @throws IOException
+	 */
+	static int sendFrame(SessionChannel channel, Iterator<Operation> operations, int batchSize, int batchBytes) throws IOException{
+		if (batchSize < 2 || !channel.acceptsBatches()) {
+			channel.writeMessage(new MessageOperation(operations.next()));
+			return 1;
+		}
+		MessageOperationBatch batch = new MessageOperationBatch();
+		int bytes = 0;
+		while (operations.hasNext() && batch.size() < batchSize && bytes < batchBytes) {
+			Operation op = operations.next();
+			batch.add(op);
+			bytes += MessageOperationBatch.estimateSize(op);
+		}
+		channel.writeMessage(batch);
+		return batch.size();
+	}
+
+	/**
+	 * collects the operations received, starting with msg, until
+	 * a message that is not an operation arrives
+	 * @param channel
+	 * @param msg: last message read
+	 * @param operations: list where received operations are added
+	 * @return the first message that is not an operation
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	static Message receive(SessionChannel channel, Message msg, List<Operation> operations) throws IOException, ClassNotFoundException{
+		while (collect(msg, operations)) {
+			msg = channel.readMessage();
+		}
+		return msg;
+	}
+
+	/**
+	 * adds to operations the operations carried by msg
+	 * @param msg
+	 * @param operations
+	 * @return false if msg is not an operation message
+	 */
+	static boolean collect(Message msg, List<Operation> operations){
+		if (msg.type() != MsgType.OPERATION) {
+			return false;
+		}
+		if (msg instanceof MessageOperationBatch) {
+			operations.addAll(((MessageOperationBatch) msg).getOperations());
+		} else {
+			operations.add(((MessageOperation) msg).getOperation());
+		}
+		return true;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.data_structures;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the identifiers of the members of the group to a dense
+ * ordinal (slot) so that the TSAE data structures can store
+ * their per-participant state in plain arrays.
+ *
+ * Registries built by this process (of) are canonical: all the
+ * registries built from the same list of participants are the same
+ * instance. Two data structures that share a registry have their
+ * slots aligned. A registry received from another node is replaced
+ * by the canonical one with the same participants, if any; otherwise
+ * it is a private instance that is not kept (received), so data
+ * received from the network does not grow the tables of this class.
+ *
+ * It also keeps the table of the host ids of the registries built by
+ * this process, which assigns each one a global ordinal (hostOrdinal).
+ * Timestamps hold the ordinal of their host instead of its id. Ordinals
+ * are only meaningful inside this process: they are never sent nor saved.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public final class ParticipantRegistry implements Serializable{
+
+	private static final long serialVersionUID = 2870358317240386459L;
+
+	// canonical registries, one per distinct list of participants
+	private static final ConcurrentHashMap<List<String>, ParticipantRegistry> registries = new ConcurrentHashMap<List<String>, ParticipantRegistry>();
+
+	// ordinal of each host id known by this process, and the host id of each ordinal
+	private static final ConcurrentHashMap<String, Integer> hostOrdinals = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] hostIds = new String[0];
+
+	private final String[] ids;
+	private transient Map<String, Integer> slots;
+	// slot of each host ordinal (-1 for hosts that are not participants)
+	private transient int[] slotsByOrdinal;
+
+	private ParticipantRegistry(String[] ids, boolean canonical){
+		this.ids = ids;
+		this.slots = buildSlots(ids);
+		this.slotsByOrdinal = buildSlotsByOrdinal(ids, canonical);
+	}
+
+	/**
+	 * @param hostId
+	 * @return the global ordinal of hostId, or -1 if hostId is null or
+	 * it is not a participant of any registry built by this process
+	 */
+	public static int hostOrdinal(String hostId){
+		if (hostId == null){
+			return -1;
+		}
+		Integer ordinal = hostOrdinals.get(hostId);
+		return ordinal == null ? -1 : ordinal.intValue();
+	}
+
+	/**
+	 * @param hostId
+	 * @return the global ordinal of hostId, assigned the first time
+	 */
+	private static int intern(String hostId){
+		Integer ordinal = hostOrdinals.get(hostId);
+		if (ordinal != null){
+			return ordinal.intValue();
+		}
+		synchronized (hostOrdinals){
+			ordinal = hostOrdinals.get(hostId);
+			if (ordinal == null){
+				String[] ids = Arrays.copyOf(hostIds, hostIds.length + 1);
+				ordinal = ids.length - 1;
+				ids[ordinal] = hostId;
+				// the id is published before its ordinal
+				hostIds = ids;
+				hostOrdinals.put(hostId, ordinal);
+			}
+			return ordinal.intValue();
+		}
+	}
+
+	/**
+	 * @param ordinal: global ordinal of a host (see hostOrdinal), or -1
+	 * @return the host id of ordinal, or null if ordinal is -1
+	 */
+	public static String hostId(int ordinal){
+		return ordinal < 0 ? null : hostIds[ordinal];
+	}
+
+	/**
+	 * @param participants: members of a group of this process
+	 * @return the canonical registry for participants
+	 */
+	public static ParticipantRegistry of(List<String> participants){
+		List<String> key = Arrays.asList(participants.toArray(new String[participants.size()]));
+		ParticipantRegistry registry = registries.get(key);
+		if (registry == null){
+			ParticipantRegistry created = new ParticipantRegistry(key.toArray(new String[key.size()]), true);
+			registry = registries.putIfAbsent(key, created);
+			if (registry == null){
+				registry = created;
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * @param participants: participants received from another node
+	 * @return the canonical registry for participants if this process
+	 * built one, or else a new registry that is not kept. The hosts of
+	 * the new registry are not given an ordinal: their slots are only
+	 * found by id (indexOf(String))
+	 */
+	public static ParticipantRegistry received(List<String> participants){
+		List<String> key = Arrays.asList(participants.toArray(new String[participants.size()]));
+		ParticipantRegistry registry = registries.get(key);
+		return registry != null ? registry : new ParticipantRegistry(key.toArray(new String[key.size()]), false);
+	}
+
+	private static Map<String, Integer> buildSlots(String[] ids){
+		Map<String, Integer> slots = new HashMap<String, Integer>(ids.length * 2);
+		for (int i = 0; i < ids.length; i++){
+			slots.put(ids[i], i);
+		}
+		return slots;
+	}
+
+	private static int[] buildSlotsByOrdinal(String[] ids, boolean canonical){
+		int[] ordinals = new int[ids.length];
+		int max = -1;
+		for (int i = 0; i < ids.length; i++){
+			ordinals[i] = (canonical && ids[i] != null ? intern(ids[i]) : hostOrdinal(ids[i]));
+			max = Math.max(max, ordinals[i]);
+		}
+		int[] slots = new int[max + 1];
+		Arrays.fill(slots, -1);
+		for (int i = 0; i < ids.length; i++){
+			if (ordinals[i] >= 0){
+				slots[ordinals[i]] = i;
+			}
+		}
+		return slots;
+	}
+
+
+	/**
+	 * @param hostId
+	 * @return the slot assigned to hostId, or -1 if hostId
+	 * is not a member of the group
+	 */
+	public int indexOf(String hostId){
+		Integer slot = slots.get(hostId);
+		return slot == null ? -1 : slot.intValue();
+	}
+
+	/**
+	 * @param hostOrdinal: global ordinal of a host (see hostOrdinal)
+	 * @return the slot assigned to the host, or -1 if it
+	 * is not a member of the group
+	 */
+	public int indexOf(int hostOrdinal){
+		return hostOrdinal >= 0 && hostOrdinal < slotsByOrdinal.length ? slotsByOrdinal[hostOrdinal] : -1;
+	}
+
+	/**
+	 * @param slot
+	 * @return the identifier of the participant stored in slot
+	 */
+	public String getId(int slot){
+		return ids[slot];
+	}
+
+	/**
+	 * @return number of participants
+	 */
+	public int size(){
+		return ids.length;
+	}
+
+	/**
+	 * @return the identifiers of the participants, in slot order
+	 */
+	public List<String> getIds(){
+		return Arrays.asList(ids.clone());
+	}
+
+	/**
+	 * Registries received from other nodes are replaced
+	 * by the local canonical instance, if any (see received)
+	 */
+	private Object readResolve() throws ObjectStreamException{
+		return received(Arrays.asList(ids));
+	}
+
+	/**
+	 * toString
+	 */
+	@Override
+	public String toString(){
+		return Arrays.toString(ids);
+	}
+}
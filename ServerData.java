@@ -20,22 +20,40 @@
 
 package recipes_service;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import recipes_service.activity_simulation.SimulationData;
 import recipes_service.communication.Host;
 import recipes_service.communication.Hosts;
 import recipes_service.data.AddOperation;
 import recipes_service.data.Operation;
+import recipes_service.data.OperationType;
 import recipes_service.data.Recipe;
 import recipes_service.data.Recipes;
 import recipes_service.data.RemoveOperation;
 import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.OperationJournal;
 import recipes_service.tsae.data_structures.Timestamp;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
+import recipes_service.tsae.sessions.SessionCodec;
+import recipes_service.tsae.sessions.SessionExecution;
+import recipes_service.tsae.sessions.SessionExecutor;
+import recipes_service.tsae.sessions.SessionHistory;
+import recipes_service.tsae.sessions.SessionScheduler;
+import recipes_service.tsae.sessions.SessionStatistics;
 import recipes_service.tsae.sessions.TSAESessionOriginatorSide;
 
 /**
@@ -61,14 +79,123 @@ public class ServerData {
 	private TimestampVector summary = null;
 	private TimestampMatrix ack = null;
 	
-	// recipes data structure
+	// recipes data structure (guarded by its own monitor)
 	private Recipes recipes = new Recipes();
 
+	// locks that serialize the operations of each origin host (one per participant
+	// plus one for unknown hosts): operations of a host are added to the log in order
+	private Object[] hostLocks = new Object[] {new Object()};
+
+	// latency of local writes (addRecipe and removeRecipe)
+	private LatencyRecorder writeLatency = new LatencyRecorder();
+
 	// number of TSAE sessions
 	int numSes = 1; // number of different partners that a server will contact for a TSAE session each time that TSAE timer (each sessionPeriod seconds) expires
 
 	// propDegree: (default value: 0) number of TSAE sessions done each time a new data is created
 	int propDegree = 0;
+
+	// propagationWindow: (default value: 5) milliseconds during which the local writes that
+	// trigger a propagation (see propDegree) are gathered into a single round of sessions
+	long propagationWindow = 5;
+
+	// operationBatchSize: (default value: 0) maximum number of operations sent in a single frame of a TSAE session.
+	// With 0 each operation is sent in its own message. Batches are only sent over binary channels
+	// to peers that announce they accept them; other peers always get one message per operation
+	int operationBatchSize = 0;
+
+	// operationBatchBytes: approximate maximum size (in bytes) of a frame of operations
+	int operationBatchBytes = 64 * 1024;
+
+	// sessionCodec: (default value: JAVA_SERIALIZATION) encoding requested when this server starts a TSAE session
+	SessionCodec sessionCodec = SessionCodec.JAVA_SERIALIZATION;
+
+	// sessionCompressionThreshold: (default value: 0, no compression) frames of binary sessions of
+	// at least this many bytes are sent compressed with Deflate to partners that accept it.
+	// Smaller frames, and so the frames of sessions that exchange few operations, are sent as they are
+	int sessionCompressionThreshold = 0;
+
+
+	// summary and ack exchanged in the last session with each partner (delta encoding of binary sessions)
+	private SessionHistory sessionHistory = new SessionHistory();
+
+	// sessionExecution: (default value: PLATFORM_THREADS) kind of threads that run TSAE sessions
+	SessionExecution sessionExecution = SessionExecution.PLATFORM_THREADS;
+
+	// maxInboundSessions: (default value: 0, no limit) maximum number of sessions started by
+	// other servers running at the same time. Sessions above the limit are rejected
+	int maxInboundSessions = 0;
+
+	// minSessionPeriod and maxSessionPeriod: (default value: 0, the sessionPeriod) bounds of the
+	// milliseconds between rounds of sessions. The period shrinks while rounds exchange operations
+	// and grows while they exchange nothing
+	long minSessionPeriod = 0;
+	long maxSessionPeriod = 0;
+
+	// maxNumberSessions: (default value: 0, numSes) maximum number of partners of a round while
+	// rounds exchange operations
+	int maxNumberSessions = 0;
+
+	// sessionRoundDeadline: (default value: 10000) milliseconds after which the sessions of a
+	// round (sessionWithN) that have not finished are aborted
+	long sessionRoundDeadline = 10000;
+
+	// pooledSessionConnections: (default value: true) keep binary session connections open
+	// to run the next sessions with the same partner (only with partners that accept it)
+	boolean pooledSessionConnections = true;
+
+	// journalDirectory: (default value: null, no journal) directory of the write-ahead journal
+	// of the log. When set, the state of the server is recovered from it when TSAE starts
+	File journalDirectory = null;
+
+	// journalSyncWrites: (default value: false) local writes wait until their operation
+	// has been forced to disk
+	boolean journalSyncWrites = false;
+
+	// journalSyncInterval: (default value: 10) milliseconds between forces of the journal to disk
+	long journalSyncInterval = 10;
+
+	private OperationJournal journal = null;
+
+	// checkpointDirectory: (default value: null, no checkpoints) directory where the state of
+	// the server is saved every checkpointPeriod milliseconds. When set, the state of the
+	// server is recovered from the last checkpoint when TSAE starts
+	File checkpointDirectory = null;
+
+	// checkpointPeriod: (default value: 60000) milliseconds between checkpoints
+	long checkpointPeriod = 60000;
+
+	private Timer checkpointTimer = null;
+	// summary of the last checkpoint written
+	private TimestampVector checkpointSummary = null;
+	private Object checkpointLock = new Object();
+	// operations of the log saved in the checkpoint recovered, until they are restored in the log
+	private List<Operation> checkpointOperations = new ArrayList<Operation>();
+	// operations applied to the recipes since the last checkpoint, in order (guarded by
+	// recipes; null without checkpoints)
+	private List<Operation> checkpointDelta = null;
+	// copy of the recipes of the last checkpoint, only used under checkpointLock: each
+	// checkpoint applies the delta to it and serializes it without locking the recipes
+	private Recipes checkpointRecipes = null;
+
+	// after recovering from a checkpoint or the journal, local writes wait until a session
+	// completes: operations of this server lost in the crash may have reached other servers,
+	// and their sequence numbers must not be used again (null: local writes do not wait)
+	private volatile CountDownLatch recoverySession = null;
+
+	// recoveryWriteTimeout: (default value: 5000) milliseconds a local write waits for the first
+	// session after a recovery. When it expires the write fails, and can be retried later
+	long recoveryWriteTimeout = 5000;
+
+	// counters of the TSAE sessions of this server
+	private SessionStatistics sessionStatistics = new SessionStatistics();
+
+	// jmxMetrics: (default value: true) export the metrics of the server as an MXBean (see TSAEMetrics)
+	boolean jmxMetrics = true;
+	private TSAEMetrics metrics = new TSAEMetrics(this);
+
+	private SessionExecutor sessionExecutor = null;
+	private Object sessionExecutorLock = new Object();
 	
 	// Participating nodes
 	private Hosts participants;
@@ -77,7 +204,7 @@ public class ServerData {
 	private long sessionDelay;
 	private long sessionPeriod = 10;
 
-	private Timer tsaeSessionTimer;
+	private SessionScheduler sessionScheduler;
 
 	//
 	TSAESessionOriginatorSide tsae = null;
@@ -102,16 +229,277 @@ public class ServerData {
 		this.log = new Log(participants.getIds());
 		this.summary = new TimestampVector(participants.getIds());
 		this.ack = new TimestampMatrix(participants.getIds());
+		Object[] locks = new Object[participants.getIds().size() + 1];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		this.hostLocks = locks;
+		boolean recovered = false;
+		if (checkpointDirectory != null) {
+			recovered = recoverCheckpoint();
+		}
+		if (journalDirectory != null) {
+			recovered |= openJournal();
+		} else {
+			restoreLog(Collections.<Operation>emptyList());
+		}
+		if (recovered && participants.getIds().size() > 1) {
+			recoverySession = new CountDownLatch(1);
+		}
+		if (checkpointDirectory != null) {
+			startCheckpoints();
+		}
+		if (jmxMetrics) {
+			metrics.register();
+		}
 		
 
-		//  Sets the Timer for TSAE sessions
+		//  Sets the scheduler of TSAE sessions
 	    tsae = new TSAESessionOriginatorSide(this);
-		tsaeSessionTimer = new Timer();
-		tsaeSessionTimer.scheduleAtFixedRate(tsae, sessionDelay, sessionPeriod);
+		sessionScheduler = new SessionScheduler(this, tsae,
+				minSessionPeriod > 0 ? minSessionPeriod : sessionPeriod,
+				maxSessionPeriod > 0 ? maxSessionPeriod : sessionPeriod,
+				numSes, Math.max(maxNumberSessions, numSes));
+		sessionScheduler.start(sessionDelay);
 	}
 
 	public void stopTSAEsessions(){
-		this.tsaeSessionTimer.cancel();
+		this.sessionScheduler.stop();
+		this.tsae.closeConnections();
+		// not created if no session has run
+		SessionExecutor executor;
+		synchronized (sessionExecutorLock) {
+			executor = this.sessionExecutor;
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (checkpointTimer != null) {
+			checkpointTimer.cancel();
+		}
+		metrics.unregister();
+		if (journal != null) {
+			// later operations are no longer journaled
+			this.log.setJournal(null);
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * recovers the recipes, summary, ack and sequence number saved in the last
+	 * checkpoint. Its operations are restored in the log by restoreLog
+	 * @return false if there was no checkpoint
+	 */
+	private boolean recoverCheckpoint(){
+		Checkpoint checkpoint;
+		try {
+			checkpoint = Checkpoint.read(checkpointDirectory);
+			if (checkpoint == null) {
+				return false;
+			}
+			if (checkpoint.getSummary().getParticipants() != this.summary.getParticipants()) {
+				throw new IllegalStateException("checkpoint of a different group of participants in " + checkpointDirectory);
+			}
+			this.recipes = checkpoint.getRecipes();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.summary = checkpoint.getSummary();
+		this.ack = checkpoint.getAck();
+		this.seqnum = checkpoint.getSeqnum();
+		this.checkpointSummary = checkpoint.getSummary();
+		this.checkpointOperations = checkpoint.getOperations();
+		return true;
+	}
+
+	/**
+	 * opens the journal and recovers from it the log, the summary, the recipes
+	 * and the sequence number of this server. Then the log starts journaling
+	 * @return false if the journal had no operations
+	 */
+	private boolean openJournal(){
+		try {
+			journal = OperationJournal.open(journalDirectory, participants.getIds(), journalSyncInterval);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		List<Operation> journaled = journal.getRecovered();
+		restoreLog(journaled);
+		journal.clearRecovered();
+		if (checkpointSummary != null) {
+			journal.setRetentionFloor(checkpointSummary);
+		}
+		this.log.setJournal(journal);
+		return !journaled.isEmpty();
+	}
+
+	/**
+	 * restores the log with the operations of the checkpoint followed by the
+	 * journaled ones, and applies the journaled operations that the checkpoint
+	 * does not cover to the summary, the recipes and the sequence number
+	 * @param journaled: operations recovered from the journal
+	 */
+	private void restoreLog(List<Operation> journaled){
+		List<Operation> recovered = new ArrayList<Operation>(checkpointOperations);
+		recovered.addAll(journaled);
+		checkpointOperations = new ArrayList<Operation>();
+		// the log of each member restarts at its first recovered operation, or after
+		// the summary of the checkpoint if the operations recovered follow it
+		TimestampVector start = this.summary.clone();
+		Set<String> started = new HashSet<String>();
+		for (Operation op : recovered) {
+			Timestamp timestamp = op.getTimestamp();
+			Timestamp last = this.summary.getLast(timestamp.getHostid());
+			if (started.add(timestamp.getHostid()) && last != null
+					&& !last.isNullTimestamp() && timestamp.getSeqnumber() <= last.getSeqnumber() + 1) {
+				start.updateTimestamp(new Timestamp(timestamp.getHostid(), timestamp.getSeqnumber() - 1));
+			}
+		}
+		this.log.startAfter(start);
+		for (Operation op : recovered) {
+			if (!this.log.add(op)) {
+				continue;
+			}
+			Timestamp last = this.summary.getLast(op.getTimestamp().getHostid());
+			if (last != null && op.getTimestamp().getSeqnumber() <= last.getSeqnumber()) {
+				// already in the recipes of the checkpoint
+				continue;
+			}
+			this.summary.updateTimestamp(op.getTimestamp());
+			if (op.getType() == OperationType.ADD) {
+				this.recipes.add(((AddOperation) op).getRecipe());
+			} else {
+				this.recipes.remove(((RemoveOperation) op).getRecipeTitle());
+			}
+			if (op.getTimestamp().getHostid().equals(id)) {
+				seqnum = Math.max(seqnum, op.getTimestamp().getSeqnumber());
+			}
+		}
+	}
+
+	private void startCheckpoints(){
+		synchronized (checkpointLock) {
+			try {
+				synchronized (recipes) {
+					checkpointRecipes = Checkpoint.deserialize(Checkpoint.serialize(recipes));
+					checkpointDelta = new ArrayList<Operation>();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		checkpointTimer = new Timer("CheckpointTimer", true);
+		checkpointTimer.schedule(new TimerTask() {
+			public void run(){
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, checkpointPeriod, checkpointPeriod);
+	}
+
+	/**
+	 * saves the state of the server in checkpointDirectory, unless nothing
+	 * has been added since the last checkpoint. The checkpoint is
+	 * incremental: local writes and sessions only record the operations
+	 * they apply (checkpointDelta). Each checkpoint takes those operations
+	 * and applies them to its own copy of the recipes (checkpointRecipes),
+	 * which is serialized and written without locks. Local writes are
+	 * only blocked while the summary is cloned and the delta is swapped.
+	 * The operations of the log covered by the summary are saved too: the
+	 * ones above the minimum of the ack may still have to be sent to other
+	 * participants.
+	 * Once the checkpoint is on disk, the journal can drop the operations
+	 * it covers.
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException{
+		synchronized (checkpointLock) {
+			TimestampVector summary;
+			long seqnum;
+			// local writes complete under the lock of this server: the summary and seqnum agree
+			synchronized (hostLock(id)) {
+				summary = this.summary.clone();
+				synchronized (timestampLock) {
+					seqnum = this.seqnum;
+				}
+			}
+			if (summary.equals(checkpointSummary)) {
+				return;
+			}
+			TimestampMatrix ack = this.ack.clone();
+			// the summary is read first: the operations it covers are already in the delta
+			List<Operation> delta;
+			synchronized (this.recipes) {
+				delta = checkpointDelta;
+				checkpointDelta = new ArrayList<Operation>();
+			}
+			for (Operation op : delta) {
+				if (op.getType() == OperationType.ADD) {
+					checkpointRecipes.add(((AddOperation) op).getRecipe());
+				} else {
+					checkpointRecipes.remove(((RemoveOperation) op).getRecipeTitle());
+				}
+			}
+			byte[] recipes = Checkpoint.serialize(checkpointRecipes);
+			new Checkpoint(recipes, summary, ack, seqnum, loggedOperations(summary)).write(checkpointDirectory);
+			checkpointSummary = summary;
+			if (journal != null) {
+				journal.setRetentionFloor(summary);
+			}
+		}
+	}
+
+	/**
+	 * @param summary
+	 * @return the operations in the log covered by summary, host by host and in order.
+	 * The log only keeps the operations that are not known by every participant
+	 */
+	private List<Operation> loggedOperations(TimestampVector summary){
+		List<Operation> operations = new ArrayList<Operation>();
+		for (Operation op : this.log.listNewer(new TimestampVector(participants.getIds()))) {
+			int slot = summary.getParticipants().indexOf(op.getTimestamp().getHostOrdinal());
+			if (slot >= 0 && op.getTimestamp().getSeqnumber() <= summary.getSeqnumber(slot)) {
+				operations.add(op);
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * waits until the operations of the local writes are durable, if required
+	 */
+	private void awaitJournal(){
+		if (journal == null || !journalSyncWrites) {
+			return;
+		}
+		try {
+			journal.awaitDurable();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * waits, after a recovery, until a session has completed (see recoverySession)
+	 */
+	private void awaitRecovery(){
+		CountDownLatch latch = this.recoverySession;
+		if (latch == null) {
+			return;
+		}
+		try {
+			if (!latch.await(recoveryWriteTimeout, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("no TSAE session completed since the recovery of " + id
+						+ ": local writes are not accepted yet");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the first TSAE session after the recovery of " + id);
+		}
 	}
 	
 	public boolean end(){
@@ -125,67 +513,263 @@ public class ServerData {
 	// ******************************
 	// *** timestamps
 	// ******************************
+	/**
+	 * @return the timestamp that follows seqnum. It is not taken: the caller
+	 * holds hostLock(id) and takes it with advanceSeqnum once the operation
+	 * is in the log, so a rejected operation does not leave a gap in the log
+	 */
 	private Timestamp nextTimestamp(){
 		Timestamp nextTimestamp = null;
 		synchronized (timestampLock){
 			if (seqnum == Timestamp.NULL_TIMESTAMP_SEQ_NUMBER){
 				seqnum = -1;
 			}
-			nextTimestamp = new Timestamp(id, ++seqnum);
+			nextTimestamp = new Timestamp(id, seqnum + 1);
 		}
 		return nextTimestamp;
 	}
 
+	/**
+	 * makes sure the next timestamp of this server follows seqnum. Called
+	 * under hostLock(id), like nextTimestamp
+	 * @param seqnum: sequence number of an operation of this server known by the group
+	 */
+	private void advanceSeqnum(long seqnum){
+		synchronized (timestampLock){
+			this.seqnum = Math.max(this.seqnum, seqnum);
+		}
+	}
+
+	/**
+	 * @param hostId
+	 * @return lock that serializes the operations originated at hostId
+	 */
+	private Object hostLock(String hostId){
+		Object[] locks = this.hostLocks;
+		TimestampVector summary = this.summary;
+		// before startTSAE every host shares the last lock
+		int slot = (summary == null ? -1 : summary.getParticipants().indexOf(hostId));
+		return locks[slot < 0 || slot >= locks.length - 1 ? locks.length - 1 : slot];
+	}
+
 	// ******************************
 	// *** add and remove recipes
 	// ******************************
-	public synchronized void addRecipe(String recipeTitle, String recipe) {
+	/**
+	 * @throws IllegalStateException if, after a recovery, no session completes
+	 * within recoveryWriteTimeout (see recoverySession): nothing has been written
+	 */
+	public void addRecipe(String recipeTitle, String recipe) {
 //      System.out.println("Adding recipe...");
-		Timestamp timestamp= nextTimestamp();
-		Recipe rcipe = new Recipe(recipeTitle, recipe, groupId, timestamp);
-		Operation op = new AddOperation(rcipe, timestamp);
+		long start = System.nanoTime();
+		awaitRecovery();
+		HostLockWaitEvent contention = new HostLockWaitEvent(id, true);
+		synchronized (hostLock(id)) {
+			contention.acquired();
+			Timestamp timestamp= nextTimestamp();
+			Recipe rcipe = new Recipe(recipeTitle, recipe, groupId, timestamp);
+			Operation op = new AddOperation(rcipe, timestamp);
 
-		this.log.add(op);
-		this.summary.updateTimestamp(timestamp);
-		this.recipes.add(rcipe);
+			addOwnOperation(op);
+			// recipes before summary: an operation covered by the summary is in the recipes
+			synchronized (recipes) {
+				this.recipes.add(rcipe);
+				applied(op);
+			}
+			this.summary.updateTimestamp(timestamp);
+		}
+		contention.commit();
+		awaitJournal();
+		writeLatency.record(System.nanoTime() - start);
+		propagate();
 //      System.out.println("...added recipe!");
 	}
  
 
 	 /**
      * Removes the recipe and adds a remove operation to the log.
+     * @throws IllegalStateException: see addRecipe
      */
 	
-	public synchronized void removeRecipe(String recipeTitle) {
+	public void removeRecipe(String recipeTitle) {
 		
-        Timestamp timestamp = nextTimestamp();
-        Recipe rcipe = this.recipes.get(recipeTitle);
-        Operation op = new RemoveOperation(recipeTitle, rcipe.getTimestamp(), timestamp);
+        long start = System.nanoTime();
+        awaitRecovery();
+        HostLockWaitEvent contention = new HostLockWaitEvent(id, true);
+        synchronized (hostLock(id)) {
+            contention.acquired();
+            Timestamp timestamp = nextTimestamp();
+            Recipe rcipe;
+            synchronized (recipes) {
+                rcipe = this.recipes.get(recipeTitle);
+            }
+            Operation op = new RemoveOperation(recipeTitle, rcipe.getTimestamp(), timestamp);
 
-        this.log.add(op);
-        this.summary.updateTimestamp(timestamp);
-        this.recipes.remove(recipeTitle);
+            addOwnOperation(op);
+            synchronized (recipes) {
+                this.recipes.remove(recipeTitle);
+                applied(op);
+            }
+            this.summary.updateTimestamp(timestamp);
+        }
+        contention.commit();
+        awaitJournal();
+        writeLatency.record(System.nanoTime() - start);
+        propagate();
 //        System.err.println("Error: removeRecipe method (recipesService.serverData) not yet implemented");
     }
 
+    /**
+     * adds to the log an operation of this server and takes its timestamp.
+     * Called under hostLock(id)
+     * @param op: operation with the timestamp returned by nextTimestamp
+     * @throws IllegalArgumentException if the journal does not accept op
+     * @throws IllegalStateException if the log does not accept op
+     */
+    private void addOwnOperation(Operation op) {
+        if (!this.log.add(op)) {
+            throw new IllegalStateException("operation " + op.getTimestamp() + " not accepted by the log");
+        }
+        advanceSeqnum(op.getTimestamp().getSeqnumber());
+    }
+
+    /**
+     * Requests, without waiting, a round of propDegree sessions to propagate local writes
+     */
+    private void propagate() {
+        SessionScheduler scheduler = this.sessionScheduler;
+        if (propDegree > 0 && scheduler != null) {
+            scheduler.push(propDegree, propagationWindow);
+        }
+    }
+
     /**
      * When an operation is retrieved from a different peer, it is executed by (in this case)
      * adding the recipe and remembering the operation in the log.
      */
-    public synchronized void execOperation(AddOperation addOp) {
-        if (this.log.add(addOp)) {
-            this.recipes.add(addOp.getRecipe());
+    public void execOperation(AddOperation addOp) {
+        String host = addOp.getTimestamp().getHostid();
+        HostLockWaitEvent contention = new HostLockWaitEvent(host, false);
+        synchronized (hostLock(host)) {
+            contention.acquired();
+            apply(this.log.addOrKeep(addOp));
         }
+        contention.commit();
     }
 
     /**
      * When an operation is retrieved from a different peer, it is executed by (in this case)
      * removing the recipe and remembering the operation in the log.
      */
-    public synchronized void execOperation(RemoveOperation removeOp) {
-        if (this.log.add(removeOp)) {
-            this.recipes.remove(removeOp.getRecipeTitle());
+    public void execOperation(RemoveOperation removeOp) {
+        String host = removeOp.getTimestamp().getHostid();
+        HostLockWaitEvent contention = new HostLockWaitEvent(host, false);
+        synchronized (hostLock(host)) {
+            contention.acquired();
+            apply(this.log.addOrKeep(removeOp));
         }
+        contention.commit();
+    }
+
+    /**
+     * applies to the recipes the operations inserted in the log. An operation received
+     * out of order is only applied when the ones before it arrive. Operations of this
+     * server (lost in a crash and received back) advance its sequence number.
+     * @param operations
+     */
+    private void apply(List<Operation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        Timestamp last = operations.get(operations.size() - 1).getTimestamp();
+        if (last.getHostid().equals(id)) {
+            advanceSeqnum(last.getSeqnumber());
+        }
+        synchronized (recipes) {
+            for (Operation op : operations) {
+                if (op.getType() == OperationType.ADD) {
+                    this.recipes.add(((AddOperation) op).getRecipe());
+                } else {
+                    this.recipes.remove(((RemoveOperation) op).getRecipeTitle());
+                }
+                applied(op);
+            }
+        }
+    }
+
+    /**
+     * records an operation applied to the recipes for the next checkpoint.
+     * Called under the lock of recipes
+     * @param op
+     */
+    private void applied(Operation op) {
+        if (checkpointDelta != null) {
+            checkpointDelta.add(op);
+        }
+    }
+
+    /**
+     * Applies the result of a successful TSAE session: executes the operations
+     * received and merges the summary and ack of the partner. Each operation only
+     * locks its origin host, so local writes and other sessions are not blocked
+     * for the whole session. The first session completed after a recovery lets
+     * local writes go on (see recoverySession).
+     *
+     * The summary and ack of the partner are cloned one after the other, so they
+     * may not belong to the same instant. A skewed pair is safe: each one only
+     * grows, and each is a lower bound of what the partner had when it was cloned.
+     * An older summary only makes this side send operations the partner already
+     * has, which it ignores. An ack entry only says that a participant received
+     * an operation, whatever summary travels with it, so purgeLog never drops an
+     * operation a participant is still missing.
+     * @param operations: operations received, in the order they were sent
+     * @param partnerSummary
+     * @param partnerAck
+     */
+    public void commitSession(List<Operation> operations, TimestampVector partnerSummary, TimestampMatrix partnerAck) {
+        for (Operation op : operations) {
+            if (op.getType() == OperationType.ADD) {
+                execOperation((AddOperation) op);
+            } else {
+                execOperation((RemoveOperation) op);
+            }
+        }
+        this.summary.updateMax(partnerSummary);
+        this.ack.updateMax(partnerAck);
+        this.log.purgeLog(this.ack);
+        // operations of this server already purged by the group are only known by the summary
+        Timestamp last = this.summary.getLast(id);
+        if (last != null) {
+            synchronized (hostLock(id)) {
+                advanceSeqnum(last.getSeqnumber());
+            }
+        }
+        CountDownLatch latch = this.recoverySession;
+        if (latch != null) {
+            latch.countDown();
+            this.recoverySession = null;
+        }
+    }
+
+    /**
+     * @return latency of local writes (addRecipe and removeRecipe)
+     */
+    public LatencyRecorder getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return counters of the TSAE sessions of this server
+     */
+    public SessionStatistics getSessionStatistics() {
+        return sessionStatistics;
+    }
+
+    /**
+     * @return metrics of the server
+     */
+    public TSAEMetrics getMetrics() {
+        return metrics;
     }
 
 
@@ -234,15 +818,226 @@ public class ServerData {
 		this.propDegree = propDegree;
 	}
 
+	public boolean getJmxMetrics(){
+		return this.jmxMetrics;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param jmxMetrics
+	 */
+	public void setJmxMetrics(boolean jmxMetrics){
+		this.jmxMetrics = jmxMetrics;
+	}
+
+	public long getPropagationWindow(){
+		return this.propagationWindow;
+	}
+
+	public void setPropagationWindow(long propagationWindow){
+		this.propagationWindow = propagationWindow;
+	}
+
+	public int getOperationBatchSize(){
+		return this.operationBatchSize;
+	}
+
+	public void setOperationBatchSize(int operationBatchSize){
+		this.operationBatchSize = operationBatchSize;
+	}
+
+	public int getOperationBatchBytes(){
+		return this.operationBatchBytes;
+	}
+
+	public void setOperationBatchBytes(int operationBatchBytes){
+		this.operationBatchBytes = operationBatchBytes;
+	}
+
+	public SessionCodec getSessionCodec(){
+		return this.sessionCodec;
+	}
+
+	public void setSessionCodec(SessionCodec sessionCodec){
+		this.sessionCodec = sessionCodec;
+	}
+
+	public int getSessionCompressionThreshold(){
+		return this.sessionCompressionThreshold;
+	}
+
+	public void setSessionCompressionThreshold(int sessionCompressionThreshold){
+		this.sessionCompressionThreshold = sessionCompressionThreshold;
+	}
+
+	public SessionHistory getSessionHistory(){
+		return this.sessionHistory;
+	}
+
+	public SessionExecution getSessionExecution(){
+		return this.sessionExecution;
+	}
+
+	/**
+	 * has to be set before any TSAE session starts
+	 * @param sessionExecution
+	 */
+	public void setSessionExecution(SessionExecution sessionExecution){
+		this.sessionExecution = sessionExecution;
+	}
+
+	public int getMaxInboundSessions(){
+		return this.maxInboundSessions;
+	}
+
+	/**
+	 * has to be set before any TSAE session starts
+	 * @param maxInboundSessions
+	 */
+	public void setMaxInboundSessions(int maxInboundSessions){
+		this.maxInboundSessions = maxInboundSessions;
+	}
+
+	public boolean getPooledSessionConnections(){
+		return this.pooledSessionConnections;
+	}
+
+	public void setPooledSessionConnections(boolean pooledSessionConnections){
+		this.pooledSessionConnections = pooledSessionConnections;
+	}
+
+	public long getSessionRoundDeadline(){
+		return this.sessionRoundDeadline;
+	}
+
+	public void setSessionRoundDeadline(long sessionRoundDeadline){
+		this.sessionRoundDeadline = sessionRoundDeadline;
+	}
+
+	public File getJournalDirectory(){
+		return this.journalDirectory;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param journalDirectory
+	 */
+	public void setJournalDirectory(File journalDirectory){
+		this.journalDirectory = journalDirectory;
+	}
+
+	public boolean getJournalSyncWrites(){
+		return this.journalSyncWrites;
+	}
+
+	public void setJournalSyncWrites(boolean journalSyncWrites){
+		this.journalSyncWrites = journalSyncWrites;
+	}
+
+	public long getJournalSyncInterval(){
+		return this.journalSyncInterval;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param journalSyncInterval
+	 */
+	public void setJournalSyncInterval(long journalSyncInterval){
+		this.journalSyncInterval = journalSyncInterval;
+	}
+
+	public File getCheckpointDirectory(){
+		return this.checkpointDirectory;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param checkpointDirectory
+	 */
+	public void setCheckpointDirectory(File checkpointDirectory){
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+	public long getCheckpointPeriod(){
+		return this.checkpointPeriod;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param checkpointPeriod
+	 */
+	public void setCheckpointPeriod(long checkpointPeriod){
+		this.checkpointPeriod = checkpointPeriod;
+	}
+
+	public long getRecoveryWriteTimeout(){
+		return this.recoveryWriteTimeout;
+	}
+
+	public void setRecoveryWriteTimeout(long recoveryWriteTimeout){
+		this.recoveryWriteTimeout = recoveryWriteTimeout;
+	}
+
+	/**
+	 * @return executor of TSAE sessions, created with the current configuration on first use
+	 */
+	public SessionExecutor getSessionExecutor(){
+		synchronized (sessionExecutorLock) {
+			if (this.sessionExecutor == null) {
+				this.sessionExecutor = new SessionExecutor(sessionExecution, maxInboundSessions);
+			}
+			return this.sessionExecutor;
+		}
+	}
+
 	public void setSessionDelay(long sessionDelay) {
 		this.sessionDelay = sessionDelay;
 	}
 	public void setSessionPeriod(long sessionPeriod) {
 		this.sessionPeriod = sessionPeriod;
 	}
+	public long getMinSessionPeriod(){
+		return this.minSessionPeriod;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param minSessionPeriod
+	 */
+	public void setMinSessionPeriod(long minSessionPeriod){
+		this.minSessionPeriod = minSessionPeriod;
+	}
+
+	public long getMaxSessionPeriod(){
+		return this.maxSessionPeriod;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param maxSessionPeriod
+	 */
+	public void setMaxSessionPeriod(long maxSessionPeriod){
+		this.maxSessionPeriod = maxSessionPeriod;
+	}
+
+	public int getMaxNumberSessions(){
+		return this.maxNumberSessions;
+	}
+
+	/**
+	 * has to be set before TSAE starts
+	 * @param maxNumberSessions
+	 */
+	public void setMaxNumberSessions(int maxNumberSessions){
+		this.maxNumberSessions = maxNumberSessions;
+	}
+
 	public TSAESessionOriginatorSide getTSAESessionOriginatorSide(){
 		return this.tsae;
 	}
+	public SessionScheduler getSessionScheduler(){
+		return this.sessionScheduler;
+	}
 	
 	// ******************************
 	// *** other
@@ -0,0 +1,72 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+
+import recipes_service.communication.Message;
+
+/**
+ * Connection used to exchange the messages of a TSAE session,
+ * independent of how messages are encoded on the wire.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+interface SessionChannel {
+
+	/**
+	 * sends msg to the other side of the session
+	 * @param msg
+	 * @throws IOException
+	 */
+	void writeMessage(Message msg) throws IOException;
+
+	/**
+	 * @return next message received from the other side of the session
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	Message readMessage() throws IOException, ClassNotFoundException;
+
+	/**
+	 * @return true if both sides accept to run more sessions over this channel
+	 * once the current one has been completed
+	 */
+	boolean isReusable();
+
+	/**
+	 * @return true if the other side accepts MessageOperationBatch messages
+	 */
+	boolean acceptsBatches();
+
+	/**
+	 * called once the session has been committed: what has been
+	 * exchanged can be used as the base of next sessions with the same peer
+	 */
+	void sessionCompleted();
+
+	/**
+	 * called when the session has not been committed
+	 */
+	void sessionFailed();
+}
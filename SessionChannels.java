@@ -0,0 +1,254 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+
+import recipes_service.ServerData;
+
+/**
+ * Opens the channel of a TSAE session and negotiates its encoding.
+ *
+ * The partner always starts by writing the header of a Java
+ * serialization stream, as it did before binary channels existed.
+ * An originator that wants a binary channel skips that header and
+ * answers with BinarySessionChannel.MAGIC instead of its own header.
+ * The partner peeks the first bytes it receives to decide which
+ * channel to use. Partners that only know Java serialization do not
+ * close the connection when they receive the magic: they never answer
+ * and keep the socket open. The originator gives up after a timeout
+ * and keeps using Java serialization with them for a while (see
+ * TSAESessionOriginatorSide).
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+final class SessionChannels {
+
+	private SessionChannels(){
+	}
+
+	/**
+	 * opens the originator side of a session
+	 * @param socket
+	 * @param serverData
+	 * @param binary: true to request a binary channel
+	 * @param peer: key identifying the partner in the SessionHistory of serverData
+	 * @param traffic: counts the bytes exchanged over the connection
+	 * @return the channel
+	 * @throws IOException
+	 */
+	static SessionChannel connect(Socket socket, ServerData serverData, boolean binary, String peer,
+			Traffic traffic) throws IOException{
+		SessionStatistics statistics = serverData.getSessionStatistics();
+		InputStream in = new CountingInputStream(socket.getInputStream(), statistics, traffic);
+		OutputStream out = new CountingOutputStream(socket.getOutputStream(), statistics, traffic);
+		if (!binary) {
+			return new ObjectSessionChannel(new ObjectInputStream_DS(in), new ObjectOutputStream_DS(out));
+		}
+		DataInputStream header = new DataInputStream(in);
+		if (header.readShort() != ObjectStreamConstants.STREAM_MAGIC
+				|| header.readShort() != ObjectStreamConstants.STREAM_VERSION) {
+			throw new StreamCorruptedException("unexpected TSAE partner stream header");
+		}
+		out.write(BinarySessionChannel.MAGIC);
+		return new BinarySessionChannel(in, out, serverData.getId(), serverData.getSummary().getParticipants(),
+				serverData.getSessionHistory(), peer, serverData.getPooledSessionConnections(),
+				serverData.getSessionCompressionThreshold());
+	}
+
+	/**
+	 * opens the partner side of a session, using the encoding
+	 * requested by the originator
+	 * @param socket
+	 * @param serverData
+	 * @param traffic: counts the bytes exchanged over the connection
+	 * @return the channel
+	 * @throws IOException
+	 */
+	static SessionChannel accept(Socket socket, ServerData serverData, Traffic traffic) throws IOException{
+		OutputStream socketOut = new CountingOutputStream(socket.getOutputStream(), null, traffic);
+		ObjectOutputStream_DS out = new ObjectOutputStream_DS(socketOut);
+		PushbackInputStream in = new PushbackInputStream(new CountingInputStream(socket.getInputStream(), null, traffic),
+				BinarySessionChannel.MAGIC.length);
+		byte[] prefix = new byte[BinarySessionChannel.MAGIC.length];
+		for (int i = 0; i < prefix.length; i++) {
+			int b = in.read();
+			if (b < 0) {
+				throw new StreamCorruptedException("TSAE session closed before its header");
+			}
+			prefix[i] = (byte) b;
+			if (prefix[i] != BinarySessionChannel.MAGIC[i]) {
+				// not a binary channel: give back what was read to the Java serialization stream
+				in.unread(prefix, 0, i + 1);
+				return new ObjectSessionChannel(new ObjectInputStream_DS(in), out);
+			}
+		}
+		return new BinarySessionChannel(in, socketOut, serverData.getId(),
+				serverData.getSummary().getParticipants(), serverData.getSessionHistory(), null, true,
+				serverData.getSessionCompressionThreshold());
+	}
+
+	/**
+	 * opens the partner side of a Java serialization session whose
+	 * first bytes have already been exchanged by a TSAESessionServer
+	 * @param socket
+	 * @param received: bytes already read from the originator
+	 * @param headerSent: number of bytes of the Java serialization
+	 * stream header already written to the originator
+	 * @param traffic: counts the bytes exchanged over the connection
+	 * @return the channel
+	 * @throws IOException
+	 */
+	static SessionChannel acceptJavaSerialization(Socket socket, byte[] received, int headerSent,
+			Traffic traffic) throws IOException{
+		OutputStream socketOut = new CountingOutputStream(socket.getOutputStream(), null, traffic);
+		ObjectOutputStream_DS out = new ObjectOutputStream_DS(new HeaderSentOutputStream(socketOut, headerSent));
+		InputStream in = new SequenceInputStream(new ByteArrayInputStream(received),
+				new CountingInputStream(socket.getInputStream(), null, traffic));
+		traffic.received += received.length;
+		traffic.sent += headerSent;
+		return new ObjectSessionChannel(new ObjectInputStream_DS(in), out);
+	}
+
+	/**
+	 * bytes sent and received over a connection. Only the session
+	 * using the connection updates and reads them
+	 */
+	static final class Traffic {
+		long sent;
+		long received;
+	}
+
+	/**
+	 * counts the bytes received in the Traffic of the connection
+	 * and, if any, in the SessionStatistics
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private SessionStatistics statistics;
+		private Traffic traffic;
+
+		CountingInputStream(InputStream in, SessionStatistics statistics, Traffic traffic){
+			super(in);
+			this.statistics = statistics;
+			this.traffic = traffic;
+		}
+
+		public int read() throws IOException{
+			int b = in.read();
+			if (b >= 0) {
+				received(1);
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException{
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				received(read);
+			}
+			return read;
+		}
+
+		private void received(int bytes){
+			traffic.received += bytes;
+			if (statistics != null) {
+				statistics.bytesReceived(bytes);
+			}
+		}
+	}
+
+	/**
+	 * counts the bytes sent in the Traffic of the connection
+	 * and, if any, in the SessionStatistics
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private SessionStatistics statistics;
+		private Traffic traffic;
+
+		CountingOutputStream(OutputStream out, SessionStatistics statistics, Traffic traffic){
+			super(out);
+			this.statistics = statistics;
+			this.traffic = traffic;
+		}
+
+		public void write(int b) throws IOException{
+			out.write(b);
+			sent(1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException{
+			out.write(b, off, len);
+			sent(len);
+		}
+
+		private void sent(int bytes){
+			traffic.sent += bytes;
+			if (statistics != null) {
+				statistics.bytesSent(bytes);
+			}
+		}
+	}
+
+	/**
+	 * drops the first bytes written: the part of the stream header
+	 * that has already been sent
+	 */
+	private static class HeaderSentOutputStream extends FilterOutputStream {
+		private int skip;
+
+		HeaderSentOutputStream(OutputStream out, int skip){
+			super(out);
+			this.skip = skip;
+		}
+
+		public void write(int b) throws IOException{
+			if (skip > 0) {
+				skip--;
+			} else {
+				out.write(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException{
+			int skipped = Math.min(skip, len);
+			skip -= skipped;
+			if (len > skipped) {
+				out.write(b, off + skipped, len - skipped);
+			}
+		}
+	}
+}
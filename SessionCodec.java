@@ -0,0 +1,36 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+/**
+ * Encoding requested by the originator of a TSAE session.
+ * The partner side accepts both.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public enum SessionCodec {
+	// Java serialization through ObjectInputStream_DS / ObjectOutputStream_DS
+	JAVA_SERIALIZATION,
+	// BinaryCodec; falls back to Java serialization with partners that do not support it
+	BINARY
+}
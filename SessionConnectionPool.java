@@ -0,0 +1,124 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connections of an originator kept open between sessions with the
+ * same partner. A connection is used by one session at a time: it is
+ * taken from the pool when a session starts and given back when the
+ * session completes.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+final class SessionConnectionPool {
+	// connections idle for longer are closed (shorter than the time partners wait for the next session)
+	static final long IDLE_TIMEOUT = 20000;
+
+	static class Connection {
+		final Socket socket;
+		final SessionChannel channel;
+		final SessionChannels.Traffic traffic;
+		final long released;
+
+		Connection(Socket socket, SessionChannel channel, SessionChannels.Traffic traffic){
+			this.socket = socket;
+			this.channel = channel;
+			this.traffic = traffic;
+			this.released = System.currentTimeMillis();
+		}
+	}
+
+	private ConcurrentHashMap<String, Connection> idle = new ConcurrentHashMap<String, Connection>();
+
+	/**
+	 * @param partner
+	 * @return an open connection with partner, or null if there is none
+	 */
+	Connection take(String partner){
+		Connection connection = idle.remove(partner);
+		if (connection == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - connection.released > IDLE_TIMEOUT || !isAlive(connection.socket)) {
+			close(connection.socket);
+			return null;
+		}
+		return connection;
+	}
+
+	/**
+	 * keeps a connection for the next session with partner
+	 */
+	void release(String partner, Socket socket, SessionChannel channel, SessionChannels.Traffic traffic){
+		Connection previous = idle.put(partner, new Connection(socket, channel, traffic));
+		if (previous != null) {
+			close(previous.socket);
+		}
+	}
+
+	void closeAll(){
+		for (String partner : new ArrayList<String>(idle.keySet())) {
+			Connection connection = idle.remove(partner);
+			if (connection != null) {
+				close(connection.socket);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the partner has closed the connection or sent
+	 * something while no session was running
+	 */
+	private static boolean isAlive(Socket socket){
+		if (socket.isClosed()) {
+			return false;
+		}
+		try {
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			try {
+				socket.setSoTimeout(0);
+				return true;
+			} catch (IOException e1) {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static void close(Socket socket){
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the TSAE sessions of a server, both the ones it starts and the
+ * ones it accepts, and limits how many accepted sessions run at the
+ * same time.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class SessionExecutor {
+	private ExecutorService executor;
+	// kind of threads actually running the sessions (see newExecutor)
+	private SessionExecution execution;
+	// permits for accepted sessions (null: no limit)
+	private Semaphore inboundSessions;
+	// whether the accepted session run by the current thread holds its permit
+	private ThreadLocal<boolean[]> inboundPermit = new ThreadLocal<boolean[]>();
+
+	/**
+	 * @param execution: kind of threads running the sessions
+	 * @param maxInboundSessions: maximum number of accepted sessions
+	 * running at the same time (0 for no limit)
+	 */
+	public SessionExecutor(SessionExecution execution, int maxInboundSessions){
+		this.executor = newExecutor(execution);
+		this.inboundSessions = (maxInboundSessions > 0 ? new Semaphore(maxInboundSessions) : null);
+	}
+
+	/**
+	 * runs a session started by this server, or the commit of
+	 * a session served by a TSAESessionServer
+	 * @param session
+	 */
+	public void execute(Runnable session){
+		executor.execute(session);
+	}
+
+	/**
+	 * runs a session started by this server
+	 * @param session
+	 * @return future to wait for the end of the session
+	 */
+	public Future<?> submit(Runnable session){
+		return executor.submit(session);
+	}
+
+	/**
+	 * runs a session accepted by this server if the limit of accepted
+	 * sessions has not been reached
+	 * @param session
+	 * @return false if the session has been rejected
+	 */
+	public boolean executeInbound(final Runnable session){
+		if (inboundSessions == null) {
+			try {
+				executor.execute(session);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+		if (!inboundSessions.tryAcquire()) {
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run(){
+					boolean[] held = {true};
+					inboundPermit.set(held);
+					try {
+						session.run();
+					} finally {
+						inboundPermit.remove();
+						if (held[0]) {
+							inboundSessions.release();
+						}
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			inboundSessions.release();
+			return false;
+		}
+	}
+
+	/**
+	 * called by an accepted session that waits for the next session of its
+	 * originator over the same connection: it does not count towards the
+	 * limit of accepted sessions while it waits
+	 */
+	public void inboundIdle(){
+		boolean[] held = inboundPermit.get();
+		if (held != null && held[0]) {
+			held[0] = false;
+			inboundSessions.release();
+		}
+	}
+
+	/**
+	 * called by an accepted session when the next session of its
+	 * originator starts, after inboundIdle
+	 * @return false if the limit of accepted sessions has been reached:
+	 * the session has to be rejected
+	 */
+	public boolean inboundBusy(){
+		boolean[] held = inboundPermit.get();
+		if (held == null || held[0]) {
+			return true;
+		}
+		held[0] = inboundSessions.tryAcquire();
+		return held[0];
+	}
+
+	public void shutdown(){
+		executor.shutdown();
+	}
+
+	/**
+	 * @return kind of threads running the sessions: PLATFORM_THREADS when
+	 * virtual threads were requested but are not available
+	 */
+	public SessionExecution getExecution(){
+		return execution;
+	}
+
+	private ExecutorService newExecutor(SessionExecution execution){
+		if (execution == SessionExecution.VIRTUAL_THREADS) {
+			try {
+				// looked up by reflection: virtual threads only exist from Java 21 on
+				ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				this.execution = SessionExecution.VIRTUAL_THREADS;
+				return executor;
+			} catch (ReflectiveOperationException e) {
+				// virtual threads not available: TSAE sessions run on platform threads (see getExecution)
+			}
+		}
+		this.execution = SessionExecution.PLATFORM_THREADS;
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "TSAESessionThread-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Remembers, for each peer, the summary and ack exchanged in the last
+ * TSAE session that both sides completed. They are the bases against
+ * which binary channels encode the next summary and ack as deltas.
+ *
+ * A base is identified by the incarnation of the server that sent it
+ * (a random number drawn when the server starts) and a number
+ * assigned by the sender. A receiver that does not hold the base named
+ * in a delta aborts the session, and both sides forget their bases
+ * so that the next session sends the full summary and ack.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class SessionHistory {
+
+	/**
+	 * summary and ack sent to a peer
+	 */
+	static class SentBase {
+		final long id;
+		final TimestampVector summary;
+		final long ackVersion;
+
+		SentBase(long id, TimestampVector summary, long ackVersion){
+			this.id = id;
+			this.summary = summary;
+			this.ackVersion = ackVersion;
+		}
+	}
+
+	/**
+	 * summary received from a peer
+	 */
+	static class ReceivedBase {
+		final long incarnation;
+		final long id;
+		final TimestampVector summary;
+
+		ReceivedBase(long incarnation, long id, TimestampVector summary){
+			this.incarnation = incarnation;
+			this.id = id;
+			this.summary = summary;
+		}
+	}
+
+	private final long incarnation = new Random().nextLong();
+	private final AtomicLong nextBaseId = new AtomicLong();
+
+	private final ConcurrentHashMap<String, SentBase> sent = new ConcurrentHashMap<String, SentBase>();
+	private final ConcurrentHashMap<String, ReceivedBase> received = new ConcurrentHashMap<String, ReceivedBase>();
+
+	/**
+	 * @return identifier of this run of the server
+	 */
+	long getIncarnation(){
+		return incarnation;
+	}
+
+	long newBaseId(){
+		return nextBaseId.incrementAndGet();
+	}
+
+	SentBase getSent(String peer){
+		return sent.get(peer);
+	}
+
+	ReceivedBase getReceived(String peer){
+		return received.get(peer);
+	}
+
+	/**
+	 * records the bases of a session completed with peer
+	 * @param peer
+	 * @param sentBase: what was sent to peer (null if nothing was sent)
+	 * @param receivedBase: what was received from peer (null if nothing was received)
+	 */
+	void completed(String peer, SentBase sentBase, ReceivedBase receivedBase){
+		if (sentBase != null) {
+			sent.put(peer, sentBase);
+		}
+		if (receivedBase != null) {
+			received.put(peer, receivedBase);
+		}
+	}
+
+	/**
+	 * forgets the bases of peer: next session with peer will
+	 * send the full summary and ack
+	 * @param peer
+	 */
+	void forget(String peer){
+		sent.remove(peer);
+		received.remove(peer);
+	}
+}
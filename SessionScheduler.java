@@ -0,0 +1,244 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import recipes_service.ServerData;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Starts the rounds of TSAE sessions of a server, adapting their
+ * period and number of partners to the activity of the group.
+ *
+ * The next round starts a period after the previous one ends. While
+ * rounds exchange operations, or the ack shows that other members know
+ * operations missing in the summary, the period is halved (down to
+ * minPeriod) and one more partner is contacted per round (up to
+ * maxPartners). Each round that exchanges nothing doubles the period
+ * (up to maxPeriod) and goes back to the configured number of
+ * partners. Periods are spread by a random jitter of up to a quarter,
+ * so that servers do not start their rounds in step.
+ *
+ * With minPeriod and maxPeriod equal the period is fixed.
+ *
+ * Local writes also request push rounds (push). The writes requested
+ * within a window are propagated by a single round, which runs apart
+ * from the periodic ones; writes that arrive while it runs are pushed
+ * by the next one.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class SessionScheduler {
+
+	private ServerData serverData;
+	private TSAESessionOriginatorSide tsae;
+	private ScheduledExecutorService timer;
+	private Random random = new Random();
+
+	private long minPeriod;
+	private long maxPeriod;
+	private int minPartners;
+	private int maxPartners;
+
+	// current period and number of partners per round (guarded by this)
+	private long period;
+	private int partners;
+
+	// a push round is scheduled or running (guarded by this)
+	private boolean pushScheduled = false;
+	// writes have been requested since the running push round started (guarded by this)
+	private boolean pushRequested = false;
+
+	/**
+	 * @param serverData
+	 * @param tsae: originator of the sessions
+	 * @param minPeriod: minimum milliseconds between rounds
+	 * @param maxPeriod: maximum milliseconds between rounds
+	 * @param minPartners: partners of a round when the group is idle
+	 * @param maxPartners: maximum partners of a round
+	 */
+	public SessionScheduler(ServerData serverData, TSAESessionOriginatorSide tsae,
+			long minPeriod, long maxPeriod, int minPartners, int maxPartners){
+		this.serverData = serverData;
+		this.tsae = tsae;
+		this.minPeriod = Math.max(minPeriod, 1);
+		this.maxPeriod = Math.max(maxPeriod, this.minPeriod);
+		this.minPartners = minPartners;
+		this.maxPartners = Math.max(maxPartners, minPartners);
+		this.period = this.minPeriod;
+		this.partners = minPartners;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "TSAESessionScheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * starts the first round after delay milliseconds
+	 * @param delay
+	 */
+	public void start(long delay){
+		schedule(delay);
+	}
+
+	public void stop(){
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return milliseconds until the next round, before jitter
+	 */
+	public synchronized long getPeriod(){
+		return period;
+	}
+
+	/**
+	 * @return number of partners of the next round
+	 */
+	public synchronized int getPartners(){
+		return partners;
+	}
+
+	private void schedule(long delay){
+		try {
+			timer.schedule(new Runnable() {
+				public void run(){
+					startRound();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * requests a round of sessions with partners partners to propagate a
+	 * local write. It does not block: the round starts window milliseconds
+	 * later, together with the writes requested in the meantime
+	 * @param partners
+	 * @param window
+	 */
+	public void push(int partners, long window){
+		synchronized (this) {
+			if (pushScheduled) {
+				pushRequested = true;
+				return;
+			}
+			pushScheduled = true;
+		}
+		schedulePush(partners, window);
+	}
+
+	private void schedulePush(final int partners, final long window){
+		try {
+			timer.schedule(new Runnable() {
+				public void run(){
+					synchronized (SessionScheduler.this) {
+						pushRequested = false;
+					}
+					if (!tsae.startPush(partners, window, SessionScheduler.this)) {
+						pushCompleted(partners, window);
+					}
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * called by the originator when a push round ends
+	 * @param partners
+	 * @param window
+	 */
+	void pushCompleted(int partners, long window){
+		synchronized (this) {
+			pushScheduled = pushRequested;
+			pushRequested = false;
+			if (!pushScheduled) {
+				return;
+			}
+		}
+		schedulePush(partners, window);
+	}
+
+	private void startRound(){
+		if (!tsae.startRound(getPartners(), this)) {
+			// the round could not start: try again later
+			schedule(nextDelay());
+		}
+	}
+
+	/**
+	 * called by the originator when a round ends
+	 * @param exchanged: number of operations sent and received in the round
+	 */
+	void roundCompleted(int exchanged){
+		boolean active = exchanged > 0 || lagging(serverData.getSummary(), serverData.getAck());
+		synchronized (this) {
+			if (active) {
+				period = Math.max(minPeriod, period / 2);
+				partners = Math.min(maxPartners, partners + 1);
+			} else {
+				period = Math.min(maxPeriod, period * 2);
+				partners = minPartners;
+			}
+		}
+		schedule(nextDelay());
+	}
+
+	private synchronized long nextDelay(){
+		long jitter = period / 4;
+		long delay = period - jitter + (jitter > 0 ? (long) (random.nextDouble() * 2 * jitter) : 0);
+		return Math.min(maxPeriod, Math.max(minPeriod, delay));
+	}
+
+	/**
+	 * @return true if, according to ack, some member knows operations that summary does not cover
+	 */
+	static boolean lagging(TimestampVector summary, TimestampMatrix ack){
+		if (summary.getParticipants() != ack.getParticipants()) {
+			return false;
+		}
+		int n = summary.getParticipants().size();
+		for (int i = 0; i < n; i++) {
+			long[] row = ack.getRow(i);
+			for (int j = 0; j < n; j++) {
+				if (row[j] > summary.getSeqnumber(j)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import recipes_service.LatencyRecorder;
+
+/**
+ * Counters of the TSAE sessions of a server: sessions it started that
+ * completed or failed, operations and bytes they exchanged, and
+ * sessions it accepted. Bytes are counted on the connections opened by
+ * the originator, so every session of the group is counted once, by
+ * its originator. The duration of the phases of the sessions (snapshot
+ * of summary and ack, sending, receiving and commit) is recorded for
+ * both sides. Counting does not lock.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class SessionStatistics {
+	private AtomicLong completedSessions = new AtomicLong();
+	private AtomicLong failedSessions = new AtomicLong();
+	private AtomicLong operationsSent = new AtomicLong();
+	private AtomicLong operationsReceived = new AtomicLong();
+	private AtomicLong bytesSent = new AtomicLong();
+	private AtomicLong bytesReceived = new AtomicLong();
+	private AtomicLong acceptedSessions = new AtomicLong();
+	private AtomicLong failedAcceptedSessions = new AtomicLong();
+	// cause of the last session that failed (null if unknown)
+	private volatile String lastFailure = null;
+
+	private LatencyRecorder snapshotTime = new LatencyRecorder();
+	private LatencyRecorder sendTime = new LatencyRecorder();
+	private LatencyRecorder receiveTime = new LatencyRecorder();
+	private LatencyRecorder commitTime = new LatencyRecorder();
+
+	void sessionCompleted(int sent, int received){
+		completedSessions.incrementAndGet();
+		operationsSent.addAndGet(sent);
+		operationsReceived.addAndGet(received);
+	}
+
+	/**
+	 * @param cause: exception that made the session fail (null if none)
+	 */
+	void sessionFailed(Throwable cause){
+		failedSessions.incrementAndGet();
+		failure(cause);
+	}
+
+	void acceptedSessionCompleted(){
+		acceptedSessions.incrementAndGet();
+	}
+
+	/**
+	 * @param cause: exception that made the session fail (null if none)
+	 */
+	void acceptedSessionFailed(Throwable cause){
+		failedAcceptedSessions.incrementAndGet();
+		failure(cause);
+	}
+
+	private void failure(Throwable cause){
+		if (cause != null) {
+			lastFailure = cause.toString();
+		}
+	}
+
+	/**
+	 * records the duration of the phases of a session
+	 * @param snapshot: nanoseconds taking the snapshot of summary and ack
+	 * @param send: nanoseconds sending
+	 * @param receive: nanoseconds receiving (-1 if not measured)
+	 * @param commit: nanoseconds committing (-1 if not measured)
+	 */
+	void phases(long snapshot, long send, long receive, long commit){
+		snapshotTime.record(snapshot);
+		sendTime.record(send);
+		if (receive >= 0) {
+			receiveTime.record(receive);
+		}
+		if (commit >= 0) {
+			commitTime.record(commit);
+		}
+	}
+
+	void commit(long nanos){
+		commitTime.record(nanos);
+	}
+
+	void bytesSent(long bytes){
+		bytesSent.addAndGet(bytes);
+	}
+
+	void bytesReceived(long bytes){
+		bytesReceived.addAndGet(bytes);
+	}
+
+	public long getCompletedSessions(){
+		return completedSessions.get();
+	}
+
+	public long getFailedSessions(){
+		return failedSessions.get();
+	}
+
+	public long getOperationsSent(){
+		return operationsSent.get();
+	}
+
+	public long getOperationsReceived(){
+		return operationsReceived.get();
+	}
+
+	public long getBytesSent(){
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived(){
+		return bytesReceived.get();
+	}
+
+	public long getAcceptedSessions(){
+		return acceptedSessions.get();
+	}
+
+	public long getFailedAcceptedSessions(){
+		return failedAcceptedSessions.get();
+	}
+
+	public String getLastFailure(){
+		return lastFailure;
+	}
+
+	public LatencyRecorder getSnapshotTime(){
+		return snapshotTime;
+	}
+
+	public LatencyRecorder getSendTime(){
+		return sendTime;
+	}
+
+	public LatencyRecorder getReceiveTime(){
+		return receiveTime;
+	}
+
+	public LatencyRecorder getCommitTime(){
+		return commitTime;
+	}
+
+	public void reset(){
+		completedSessions.set(0);
+		failedSessions.set(0);
+		operationsSent.set(0);
+		operationsReceived.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+		acceptedSessions.set(0);
+		failedAcceptedSessions.set(0);
+		lastFailure = null;
+		snapshotTime.reset();
+		sendTime.reset();
+		receiveTime.reset();
+		commitTime.reset();
+	}
+
+	@Override
+	public String toString(){
+		return "completed=" + getCompletedSessions() + " failed=" + getFailedSessions()
+				+ " operationsSent=" + getOperationsSent() + " operationsReceived=" + getOperationsReceived()
+				+ " bytesSent=" + getBytesSent() + " bytesReceived=" + getBytesReceived()
+				+ " accepted=" + getAcceptedSessions() + " acceptedFailed=" + getFailedAcceptedSessions();
+	}
+}
@@ -0,0 +1,233 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampVector;
+import recipes_service.tsae.sessions.SessionStatistics;
+
+/**
+ * Exports the metrics of a server as an MXBean named
+ * recipes_service:type=TSAEMetrics,group=<group>,server=<id>.
+ *
+ * The counters and histograms are kept by the structures that update
+ * them (SessionStatistics, Log, the write latency of ServerData) with
+ * atomic operations; this class only reads them. Log depth and summary
+ * lag are computed when they are read, so they cost nothing otherwise.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class TSAEMetrics implements TSAEMetricsMXBean {
+
+	private ServerData serverData;
+	private ObjectName name = null;
+
+	TSAEMetrics(ServerData serverData){
+		this.serverData = serverData;
+	}
+
+	/**
+	 * registers the metrics in the platform MBean server
+	 * @throws IllegalStateException if they cannot be registered, unless another
+	 * server of the group with the same id in this JVM has already registered its own
+	 */
+	void register(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("recipes_service:type=TSAEMetrics,group="
+					+ ObjectName.quote(serverData.getGroupId()) + ",server=" + ObjectName.quote(serverData.getId()));
+			server.registerMBean(this, objectName);
+			name = objectName;
+		} catch (InstanceAlreadyExistsException e) {
+			// another server with the same id in this JVM: its metrics are the ones exported
+		} catch (JMException e) {
+			throw new IllegalStateException("TSAE metrics of " + serverData.getId() + " not exported", e);
+		}
+	}
+
+	void unregister(){
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already unregistered
+		}
+		name = null;
+	}
+
+	private SessionStatistics sessions(){
+		return serverData.getSessionStatistics();
+	}
+
+	public long getCompletedSessions(){
+		return sessions().getCompletedSessions();
+	}
+
+	public long getFailedSessions(){
+		return sessions().getFailedSessions();
+	}
+
+	public long getAcceptedSessions(){
+		return sessions().getAcceptedSessions();
+	}
+
+	public long getFailedAcceptedSessions(){
+		return sessions().getFailedAcceptedSessions();
+	}
+
+	public String getLastSessionFailure(){
+		return sessions().getLastFailure();
+	}
+
+	public long getOperationsSent(){
+		return sessions().getOperationsSent();
+	}
+
+	public long getOperationsReceived(){
+		return sessions().getOperationsReceived();
+	}
+
+	public double getOperationsPerSession(){
+		long completed = getCompletedSessions();
+		return completed == 0 ? 0 : (double) (getOperationsSent() + getOperationsReceived()) / completed;
+	}
+
+	public long getBytesSent(){
+		return sessions().getBytesSent();
+	}
+
+	public long getBytesReceived(){
+		return sessions().getBytesReceived();
+	}
+
+	public double getBytesPerSession(){
+		long completed = getCompletedSessions();
+		return completed == 0 ? 0 : (double) (getBytesSent() + getBytesReceived()) / completed;
+	}
+
+	public Map<String, Long> getSessionPhaseP50(){
+		return phases(50);
+	}
+
+	public Map<String, Long> getSessionPhaseP99(){
+		return phases(99);
+	}
+
+	private Map<String, Long> phases(double percentile){
+		SessionStatistics statistics = sessions();
+		Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		phases.put("snapshot", statistics.getSnapshotTime().getPercentile(percentile));
+		phases.put("send", statistics.getSendTime().getPercentile(percentile));
+		phases.put("receive", statistics.getReceiveTime().getPercentile(percentile));
+		phases.put("commit", statistics.getCommitTime().getPercentile(percentile));
+		return phases;
+	}
+
+	public long getLogRejectedOperations(){
+		Log log = serverData.getLog();
+		return log == null ? 0 : log.getRejectedOperations();
+	}
+
+	public long getLogKeptOperations(){
+		Log log = serverData.getLog();
+		return log == null ? 0 : log.pendingSize();
+	}
+
+	public long getLogPurgedOperations(){
+		Log log = serverData.getLog();
+		return log == null ? 0 : log.getPurgedOperations();
+	}
+
+	public long getLogPurges(){
+		Log log = serverData.getLog();
+		return log == null ? 0 : log.getPurgeTime().getCount();
+	}
+
+	public long getLogPurgeP99(){
+		Log log = serverData.getLog();
+		return log == null ? 0 : log.getPurgeTime().getPercentile(99);
+	}
+
+	public Map<String, Long> getLogDepth(){
+		Log log = serverData.getLog();
+		return log == null ? new LinkedHashMap<String, Long>() : log.getDepths();
+	}
+
+	/**
+	 * @return for each member, operations covered by the summary that
+	 * are not known by all the members according to the ack
+	 */
+	public Map<String, Long> getSummaryLag(){
+		Map<String, Long> lag = new LinkedHashMap<String, Long>();
+		TimestampVector summary = serverData.getSummary();
+		if (summary == null) {
+			return lag;
+		}
+		TimestampVector min = serverData.getAck().minTimestampVector();
+		for (String id : summary.getParticipants().getIds()) {
+			long last = seqnumber(summary.getLast(id));
+			long acknowledged = (min == null ? -1 : seqnumber(min.getLast(id)));
+			lag.put(id, Math.max(last - acknowledged, 0));
+		}
+		return lag;
+	}
+
+	private static long seqnumber(Timestamp timestamp){
+		if (timestamp == null || timestamp.isNullTimestamp()) {
+			return -1;
+		}
+		return timestamp.getSeqnumber();
+	}
+
+	public long getWriteLatencyP50(){
+		return serverData.getWriteLatency().getPercentile(50);
+	}
+
+	public long getWriteLatencyP99(){
+		return serverData.getWriteLatency().getPercentile(99);
+	}
+
+	/**
+	 * @return kind of threads actually running the sessions (see SessionExecutor.getExecution)
+	 */
+	public String getSessionExecution(){
+		return serverData.getSessionExecutor().getExecution().name();
+	}
+
+	public void reset(){
+		sessions().reset();
+		serverData.getWriteLatency().reset();
+	}
+}
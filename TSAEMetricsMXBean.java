@@ -0,0 +1,88 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a server (see TSAEMetrics).
+ * Durations are in nanoseconds; phases of the sessions are snapshot,
+ * send, receive and commit.
+ *
+ * Operations and bytes are those of the sessions this server started:
+ * the sessions it accepted are counted by their originators, so each
+ * session of the group is counted once. BytesPerSession is per
+ * completed session.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public interface TSAEMetricsMXBean {
+
+	long getCompletedSessions();
+
+	long getFailedSessions();
+
+	long getAcceptedSessions();
+
+	long getFailedAcceptedSessions();
+
+	String getLastSessionFailure();
+
+	long getOperationsSent();
+
+	long getOperationsReceived();
+
+	double getOperationsPerSession();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getBytesPerSession();
+
+	Map<String, Long> getSessionPhaseP50();
+
+	Map<String, Long> getSessionPhaseP99();
+
+	long getLogRejectedOperations();
+
+	long getLogKeptOperations();
+
+	long getLogPurgedOperations();
+
+	long getLogPurges();
+
+	long getLogPurgeP99();
+
+	Map<String, Long> getLogDepth();
+
+	Map<String, Long> getSummaryLag();
+
+	long getWriteLatencyP50();
+
+	long getWriteLatencyP99();
+
+	String getSessionExecution();
+
+	void reset();
+}
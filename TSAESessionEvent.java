@@ -0,0 +1,105 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a TSAE session, on either side: from the
+ * moment it starts (the originator opens it, the partner receives the
+ * AE request) until it is committed or fails. Its duration can be
+ * correlated with GC pauses and lock contention of the same recording.
+ *
+ * When no recording is running the event is neither filled nor written.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@Name("recipes_service.TSAESession")
+@Label("TSAE Session")
+@Category({"Recipes Service", "TSAE"})
+@Description("Anti-entropy session with a partner")
+@StackTrace(false)
+public class TSAESessionEvent extends Event {
+	static final String ORIGINATOR = "originator";
+	static final String PARTNER = "partner";
+
+	@Label("Role")
+	@Description("Side of the session run by this server: originator or partner")
+	String role;
+
+	@Label("Partner")
+	@Description("Address of the other side of the session")
+	String partner;
+
+	@Label("Server")
+	String server;
+
+	@Label("Pooled Connection")
+	@Description("The session reused the connection of a previous one")
+	boolean pooled;
+
+	@Label("Completed")
+	boolean completed;
+
+	@Label("Operations Sent")
+	int operationsSent;
+
+	@Label("Operations Received")
+	int operationsReceived;
+
+	@Label("Bytes Sent")
+	@DataAmount
+	long bytesSent;
+
+	@Label("Bytes Received")
+	@DataAmount
+	long bytesReceived;
+
+	@Label("Failure")
+	String failure;
+
+	TSAESessionEvent(String role, String server){
+		this.role = role;
+		this.server = server;
+	}
+
+	/**
+	 * ends the session and writes the event
+	 * @param completed
+	 * @param failure: cause of the failure, or null
+	 */
+	void finish(boolean completed, Throwable failure){
+		end();
+		if (shouldCommit()) {
+			this.completed = completed;
+			this.failure = (failure == null ? null : failure.toString());
+			commit();
+		}
+	}
+}
@@ -21,31 +21,37 @@
 package recipes_service.tsae.sessions;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 //import java.util.ArrayList;
 
 import recipes_service.ServerData;
 import recipes_service.activity_simulation.SimulationData;
 import recipes_service.communication.Host;
-import communication.ObjectInputStream_DS;
-import communication.ObjectOutputStream_DS;
 
 
 
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
-import recipes_service.data.AddOperation;
 import recipes_service.data.Operation;
-import recipes_service.data.OperationType;
-import recipes_service.data.RemoveOperation;
 
 
 /**
@@ -54,7 +60,23 @@ import recipes_service.data.RemoveOperation;
  *
  */
 public class TSAESessionOriginatorSide extends TimerTask{
+	// time to wait for the first answer of a partner when requesting a binary channel
+	private static final int NEGOTIATION_TIMEOUT = 10000;
+	// time before requesting again a binary channel to a partner that refused it,
+	// doubled each time the same partner refuses it again
+	private static final long BINARY_RETRY_PERIOD = 60000;
+	private static final long MAX_BINARY_RETRY_PERIOD = 60 * 60000;
+
 	private ServerData serverData;
+
+	// partners that refused a binary channel: [time of the next request, retry period]
+	private Map<String, long[]> javaSerializationPartners = new ConcurrentHashMap<String, long[]>();
+
+	// connections kept open with partners between sessions
+	private SessionConnectionPool connections = new SessionConnectionPool();
+
+	// true while the sessions started by the timer are running
+	private AtomicBoolean running = new AtomicBoolean(false);
 	
 	public TSAESessionOriginatorSide(ServerData serverData){
 		super();
@@ -62,44 +84,180 @@ public class TSAESessionOriginatorSide extends TimerTask{
 	}
 	
 	/**
-	 * Implementation of the TimeStamped Anti-Entropy protocol
+	 * Implementation of the TimeStamped Anti-Entropy protocol.
+	 * Sessions run in the session executor of serverData; the timer
+	 * skips a period if the sessions of the previous one are still running
 	 */
 	public void run(){
-		sessionWithN(serverData.getNumberSessions());
+		startRound(serverData.getNumberSessions(), null);
+	}
+
+	/**
+	 * starts a round of num sessions in the session executor of serverData
+	 * @param num
+	 * @param scheduler: notified when the round ends (null if none)
+	 * @return false if the sessions of the previous round are still running
+	 * or the executor has been shut down
+	 */
+	boolean startRound(final int num, final SessionScheduler scheduler){
+		if (!running.compareAndSet(false, true)) {
+			return false;
+		}
+		try {
+			serverData.getSessionExecutor().execute(new Runnable() {
+				public void run(){
+					int exchanged = 0;
+					try {
+						exchanged = sessionWithN(num);
+					} finally {
+						running.set(false);
+						if (scheduler != null) {
+							scheduler.roundCompleted(exchanged);
+						}
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			running.set(false);
+			return false;
+		}
+	}
+
+	/**
+	 * starts a round of num sessions in the session executor of serverData
+	 * to propagate local writes. It runs even if a periodic round is running
+	 * @param num
+	 * @param window: coalescing window of the push (see SessionScheduler.push)
+	 * @param scheduler: notified when the round ends
+	 * @return false if the executor has been shut down
+	 */
+	boolean startPush(final int num, final long window, final SessionScheduler scheduler){
+		try {
+			serverData.getSessionExecutor().execute(new Runnable() {
+				public void run(){
+					try {
+						sessionWithN(num);
+					} finally {
+						scheduler.pushCompleted(num, window);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
 	}
 
 	/**
 	 * This method performs num TSAE sessions
 	 * with num random servers
 	 * @param num
+	 * @return number of operations sent and received in the sessions
 	 */
-	public void sessionWithN(int num){
+	public int sessionWithN(int num){
 		if(!SimulationData.getInstance().isConnected())
-			return;
+			return 0;
 		List<Host> partnersTSAEsession= serverData.getRandomPartners(num);
-		Host n;
+		// sessions run concurrently; each one commits as soon as it ends
+		final Round round = new Round();
+		List<Future<?>> sessions = new ArrayList<Future<?>>();
 		for(int i=0; i<partnersTSAEsession.size(); i++){
-			n=partnersTSAEsession.get(i);
-			sessionTSAE(n);
+			final Host n=partnersTSAEsession.get(i);
+			try {
+				sessions.add(serverData.getSessionExecutor().submit(new Runnable() {
+					public void run(){
+						sessionTSAE(n, round);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// executor shut down
+			}
 		}
+		long deadline = System.currentTimeMillis() + serverData.getSessionRoundDeadline();
+		try {
+			for (Future<?> session : sessions) {
+				try {
+					session.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					// a failed session does not end the round: the others go on until the deadline
+					serverData.getSessionStatistics().sessionFailed(e.getCause());
+				}
+			}
+		} catch (TimeoutException e) {
+			// sessions that have not started to commit are aborted: their connections
+			// are closed and they are not committed (see Round.commit)
+			round.expire();
+		} catch (InterruptedException e) {
+			round.expire();
+			Thread.currentThread().interrupt();
+		}
+		return round.getExchanged();
 	}
 	
 	/**
 	 * This method perform a TSAE session
 	 * with the partner server n
 	 * @param n
+	 * @param round: round of sessions the session belongs to
 	 */
 
-	private void sessionTSAE(Host n){
+	private void sessionTSAE(Host n, Round round){
 		if (n == null) return;
 
+		String partner = n.getAddress() + ":" + n.getPort();
+		SessionConnectionPool.Connection pooled = connections.take(partner);
+		if (pooled != null && sessionTSAE(n, round, pooled)) {
+			return;
+		}
+		sessionTSAE(n, round, null);
+	}
+
+	/**
+	 * This method perform a TSAE session
+	 * with the partner server n
+	 * @param n
+	 * @param round: round of sessions the session belongs to
+	 * @param pooled: connection kept from a previous session with n, or null to open a new one
+	 * @return false if the session failed on a pooled connection before the partner
+	 * answered (the partner may have closed the connection): it is worth retrying
+	 * on a new connection
+	 */
+	private boolean sessionTSAE(Host n, Round round, SessionConnectionPool.Connection pooled){
+
 //		System.out.println("Originator starts TSAE session with ... " + n);
 
-		 
+		String partner = n.getAddress() + ":" + n.getPort();
+		boolean binary = (pooled == null && requestBinaryCodec(partner));
+		boolean negotiating = false;
+		SessionChannel channel = (pooled == null ? null : pooled.channel);
+		SessionChannels.Traffic traffic = (pooled == null ? new SessionChannels.Traffic() : pooled.traffic);
+		long bytesSent = traffic.sent;
+		long bytesReceived = traffic.received;
+		TSAESessionEvent event = new TSAESessionEvent(TSAESessionEvent.ORIGINATOR, serverData.getId());
+		event.partner = partner;
+		event.pooled = (pooled != null);
+		event.begin();
+		boolean completed = false;
+		boolean answered = false;
+		boolean reuse = false;
+		IOException failure = null;
+		// duration of the phases of the session
+		long snapshotTime, sendTime, receiveTime, start;
+		Socket socket = (pooled == null ? new Socket() : pooled.socket);
 		try {
-			Socket socket = new Socket(n.getAddress(), n.getPort());
-			ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
-			ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
+			if (!round.open(socket)) {
+				return true;
+			}
+			if (pooled == null) {
+				socket.connect(new InetSocketAddress(n.getAddress(), n.getPort()));
+				if (binary) {
+					// partners that do not know the binary codec never answer
+					socket.setSoTimeout(NEGOTIATION_TIMEOUT);
+				}
+				channel = SessionChannels.connect(socket, serverData, binary, "to:" + partner, traffic);
+				negotiating = binary;
+			}
 
 //			System.out.println("Originator - opened streams");
 			
@@ -107,25 +265,21 @@ public class TSAESessionOriginatorSide extends TimerTask{
 			TimestampMatrix localAck;
 			TimestampVector localSummary;	
 
-	        /**
-	         * Recopila una instantnea de localSummary y localAck. 
-	         * Se sincroniza para que la matriz o el resumen no cambie entre ellos.
-	         * Tambin este es el nico lugar donde el vector local en la matriz 
-	         * se actualiza con el localSummary.
-             * 
-             */
-			//Synchronized them
-            synchronized (serverData) {
+			// summary and ack are cloned one after the other, not atomically: a write or a session
+			// can change them in between. The pair sent can be skewed, which the partner tolerates
+			// (see ServerData.commitSession). The ack clone shares its immutable rows; the summary
+			// clone copies one entry per participant
   //           System.out.println("Originator - begin to clone summary");
+                start = System.nanoTime();
                 localSummary = this.serverData.getSummary().clone();
 //             System.out.println("Originator - finish to clone summary");
 //             System.out.println(localSummary.toString());               
 //				serverData.getAck().update(serverData.getId(), localSummary);               
 //             System.out.println("Originator - begin to clone ack");
                 localAck = this.serverData.getAck().clone();
+                snapshotTime = System.nanoTime() - start;
 //             System.out.println("Originator - finish to clone ack");
 //             System.out.println(localAck.toString());
-            }          
 //             System.out.println("Originator - collected local Summary and Ack");
                      
             /**
@@ -134,16 +288,25 @@ public class TSAESessionOriginatorSide extends TimerTask{
              */
             // send localSummary and localAck
 
+			start = System.nanoTime();
 			Message	msg = new MessageAErequest(localSummary, localAck);  
-			out.writeObject(msg);
+			channel.writeMessage(msg);
+			sendTime = System.nanoTime() - start;
 			
 //			System.out.println("Originator - sent AE Request");
 			
 // 			receive operations from partner
 
-			List<MessageOperation> operations = new Vector<MessageOperation>();
+			List<Operation> operations = new Vector<Operation>();
 			
-			msg = (Message) in.readObject();
+			start = System.nanoTime();
+			msg = channel.readMessage();
+			answered = true;
+			if (negotiating) {
+				negotiating = false;
+				socket.setSoTimeout(0);
+				javaSerializationPartners.remove(partner);
+			}
 			
             /**
              * Recopila todas las operaciones que tiene la el otro lado 
@@ -151,14 +314,9 @@ public class TSAESessionOriginatorSide extends TimerTask{
              * La ejecucin sucede despus de que sepamos que TSAE tuvo xito.
              * 
              */
-			while (msg.type() == MsgType.OPERATION){
-
-//				System.out.println("Originator - received operation: ");
-				
-				operations.add((MessageOperation) msg);			
-//				System.out.println("Originator - remembered operation");				
-				msg = (Message) in.readObject();
-			}
+			msg = OperationTransfer.receive(channel, msg, operations);
+			receiveTime = System.nanoTime() - start;
+			event.operationsReceived = operations.size();
 			
 			if (msg.type() == MsgType.AE_REQUEST){
 													
@@ -171,19 +329,23 @@ public class TSAESessionOriginatorSide extends TimerTask{
              * que tiene el otro lado (el resumen recibido) y las enva al otro lado.
              * 
              */
-			for (Operation op : serverData.getLog().listNewer(aeMsg.getSummary())) {
-                out.writeObject(new MessageOperation(op));
-            }
+			start = System.nanoTime();
+			int sent = OperationTransfer.send(channel, serverData.getLog().newerIterator(aeMsg.getSummary()),
+					serverData.getOperationBatchSize(), serverData.getOperationBatchBytes());
+			event.operationsSent = sent;
             
 //			System.out.println("Originator - sent operations");
 			
 			// send operations
 			// send and "end of TSAE session" message
 			msg = new MessageEndTSAE();  
-			out.writeObject(msg);			
+			channel.writeMessage(msg);			
+			sendTime += System.nanoTime() - start;
 //			System.out.println("Originator - sent EndTSAE");	
 			// receive message to inform about the ending of the TSAE session
-			msg = (Message) in.readObject();
+			start = System.nanoTime();
+			msg = channel.readMessage();
+			receiveTime += System.nanoTime() - start;
 			
 			if (msg.type() == MsgType.END_TSAE){
 
@@ -194,34 +356,150 @@ public class TSAESessionOriginatorSide extends TimerTask{
                  * TSEA tuvo xito => ejecuta las operaciones recopiladas y actualizar los datos del servidor local.
                  * 
                  */
-                synchronized (serverData) {
-                    for (MessageOperation op : operations) {
-                        if (op.getOperation().getType() == OperationType.ADD) {
-                            serverData.execOperation((AddOperation) op.getOperation());
-                        } else {
-                            serverData.execOperation((RemoveOperation) op.getOperation());
-                        }
-                    }                  
-//          System.out.println("Originator - implemented all operations");                  
-//			updated summary and ACK      
-                     serverData.getSummary().updateMax(aeMsg.getSummary());
-                     serverData.getAck().updateMax(aeMsg.getAck());
-                     serverData.getLog().purgeLog(serverData.getAck());
-                     
+                if (!round.commit(socket)) {
+                    throw new InterruptedIOException("deadline of the round expired");
+                }
+                start = System.nanoTime();
+                serverData.commitSession(operations, aeMsg.getSummary(), aeMsg.getAck());
+                SessionStatistics statistics = serverData.getSessionStatistics();
+                statistics.phases(snapshotTime, sendTime, receiveTime, System.nanoTime() - start);
+                round.exchanged(sent + operations.size());
+                statistics.sessionCompleted(sent, operations.size());
+                completed = true;
 //          System.out.println("Originator - updated Summary and Ack");
-                  
-				 } 
 			}
-		}				
-			socket.close();
+		}
+			// keep the connection for the next session with the partner if it accepts it
+			reuse = completed && channel.isReusable();
 			
 		} catch (ClassNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
             System.exit(1);
 		} catch (IOException e) {
-	    }	
+			failure = e;
+			if (negotiating) {
+				// the partner does not understand the binary codec. Also recorded when the round
+				// expired first: otherwise a round shorter than NEGOTIATION_TIMEOUT would wait for
+				// the partner again in every round
+				refusedBinaryCodec(partner);
+			}
+	    } finally {
+			round.release(socket);
+			if (!reuse) {
+				SessionConnectionPool.close(socket);
+			}
+		}
+		if (channel != null) {
+			if (completed) {
+				channel.sessionCompleted();
+			} else {
+				channel.sessionFailed();
+			}
+		}
+		if (!completed && (answered || pooled == null || round.isExpired())) {
+			// a pooled connection closed before the partner answered is retried, not counted
+			serverData.getSessionStatistics().sessionFailed(failure);
+		}
+		event.bytesSent = traffic.sent - bytesSent;
+		event.bytesReceived = traffic.received - bytesReceived;
+		event.finish(completed, failure);
+		if (reuse) {
+			connections.release(partner, socket, channel, traffic);
+		}
 //		System.out.println("...originator finished TSAE session with " + n);
+		return answered || pooled == null || round.isExpired();
+	}
+
+	/**
+	 * closes the connections kept with partners
+	 */
+	public void closeConnections(){
+		connections.closeAll();
+	}
+
+	/**
+	 * @param partner
+	 * @return true if the session with partner has to request a binary channel
+	 */
+	private boolean requestBinaryCodec(String partner){
+		if (serverData.getSessionCodec() != SessionCodec.BINARY) {
+			return false;
+		}
+		long[] refused = javaSerializationPartners.get(partner);
+		// the partner is forgotten once it accepts a binary channel
+		return refused == null || System.currentTimeMillis() >= refused[0];
+	}
+
+	/**
+	 * records that partner has not answered a request of a binary channel
+	 * @param partner
+	 */
+	private void refusedBinaryCodec(String partner){
+		long[] refused = javaSerializationPartners.get(partner);
+		long period = (refused == null ? BINARY_RETRY_PERIOD : Math.min(2 * refused[1], MAX_BINARY_RETRY_PERIOD));
+		javaSerializationPartners.put(partner, new long[] {System.currentTimeMillis() + period, period});
+	}
+
+	/**
+	 * sockets of the sessions of a round. When the deadline of the
+	 * round expires they are closed to abort the sessions
+	 */
+	private static class Round {
+		private List<Socket> sockets = new ArrayList<Socket>();
+		private boolean expired = false;
+		// operations sent and received in the sessions committed
+		private AtomicInteger exchanged = new AtomicInteger();
+
+		/**
+		 * @param socket
+		 * @return false if the round has already expired
+		 */
+		synchronized boolean open(Socket socket){
+			if (expired) {
+				return false;
+			}
+			sockets.add(socket);
+			return true;
+		}
+
+		synchronized void release(Socket socket){
+			sockets.remove(socket);
+		}
+
+		/**
+		 * @param socket
+		 * @return false if the round has already expired: the session
+		 * must not be committed. Once a session starts to commit its
+		 * socket is not closed if the round expires
+		 */
+		synchronized boolean commit(Socket socket){
+			if (expired) {
+				return false;
+			}
+			sockets.remove(socket);
+			return true;
+		}
+
+		synchronized void expire(){
+			expired = true;
+			for (Socket socket : sockets) {
+				SessionConnectionPool.close(socket);
+			}
+			sockets.clear();
+		}
+
+		synchronized boolean isExpired(){
+			return expired;
+		}
+
+		void exchanged(int operations){
+			exchanged.addAndGet(operations);
+		}
+
+		int getExchanged(){
+			return exchanged.get();
+		}
 	}
      
 }
@@ -24,8 +24,6 @@ package recipes_service.tsae.sessions;
 import java.io.IOException;
 import java.net.Socket;
 
-import communication.ObjectInputStream_DS;
-import communication.ObjectOutputStream_DS;
 import recipes_service.ServerData;
 import java.util.List;
 import java.util.Vector;
@@ -34,12 +32,8 @@ import java.util.Vector;
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
-import recipes_service.data.AddOperation;
 import recipes_service.data.Operation;
-import recipes_service.data.OperationType;
-import recipes_service.data.RemoveOperation;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
@@ -50,122 +44,220 @@ import recipes_service.tsae.data_structures.TimestampVector;
  * December 2012
  *
  */
-public class TSAESessionPartnerSide extends Thread{
+public class TSAESessionPartnerSide implements Runnable{
+	// time a reusable connection waits for the next session of the originator
+	private static final int IDLE_TIMEOUT = 60000;
+
 	private Socket socket = null;
 	private ServerData serverData = null;
+	// bytes already exchanged by a TSAESessionServer that handed over the session (null otherwise)
+	private byte[] received = null;
+	private int headerSent = 0;
 	
 	public TSAESessionPartnerSide(Socket socket, ServerData serverData) {
-		super("TSAEPartnerSideThread");
 		this.socket = socket;
 		this.serverData = serverData;
 	}
+
+	/**
+	 * continues a Java serialization session started by a TSAESessionServer
+	 * @param socket: socket in blocking mode
+	 * @param serverData
+	 * @param received: bytes already read from the originator
+	 * @param headerSent: bytes of the stream header already written to the originator
+	 */
+	TSAESessionPartnerSide(Socket socket, ServerData serverData, byte[] received, int headerSent) {
+		this(socket, serverData);
+		this.received = received;
+		this.headerSent = headerSent;
+	}
+
+	/**
+	 * runs the session in the session executor of serverData. When too
+	 * many sessions are already running the connection is closed: the
+	 * originator will retry in one of its next sessions
+	 */
+	public void start() {
+		if (!serverData.getSessionExecutor().executeInbound(this)) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	public void run() {
 		
 //		System.out.println("Partner starts TSAE session...");
 		
+		SessionChannel channel = null;
+		boolean completed = false;
+		// true while waiting for the next session over a reusable channel
+		boolean waiting = false;
+		Exception failure = null;
+		SessionStatistics statistics = serverData.getSessionStatistics();
+		SessionChannels.Traffic traffic = new SessionChannels.Traffic();
+		TSAESessionEvent event = null;
+		// sessions served over the connection
+		int sessions = 0;
+		// duration of the phases of the session
+		long snapshotTime, sendTime, receiveTime, start;
 		try {
-			ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
-			ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
+			if (received == null) {
+				channel = SessionChannels.accept(socket, serverData, traffic);
+			} else {
+				channel = SessionChannels.acceptJavaSerialization(socket, received, headerSent, traffic);
+			}
 //			System.out.println("Partner - opened streams");		
-			// receive originator's summary and ack
-			Message msg = (Message) in.readObject();
-			if (msg.type() == MsgType.AE_REQUEST){
-				MessageAErequest aeMsg = (MessageAErequest) msg;	
-//				System.out.println("Partner - received AE Request");			
-				// get a copy of the actual ACK and Summary
-				TimestampMatrix localAck;
-				TimestampVector localSummary;	
+			// the originator can start more sessions over the same connection when it is reusable
+			while (true) {
+				// receive originator's summary and ack
+				long bytesSent = traffic.sent;
+				long bytesReceived = traffic.received;
+				Message msg = channel.readMessage();
+				if (waiting && !serverData.getSessionExecutor().inboundBusy()) {
+					// too many sessions running: the originator will retry over a new connection
+					break;
+				}
+				start = System.nanoTime();
+				event = new TSAESessionEvent(TSAESessionEvent.PARTNER, serverData.getId());
+				if (event.isEnabled()) {
+					event.partner = String.valueOf(socket.getRemoteSocketAddress());
+				}
+				event.pooled = (sessions++ > 0);
+				event.begin();
+				socket.setSoTimeout(0);
+				waiting = false;
+				completed = false;
+				if (msg.type() == MsgType.AE_REQUEST){
+					MessageAErequest aeMsg = (MessageAErequest) msg;	
+	//				System.out.println("Partner - received AE Request");			
+					// get a copy of the actual ACK and Summary
+					TimestampMatrix localAck;
+					TimestampVector localSummary;	
+					// summary and ack are cloned one after the other: the pair can be skewed (see ServerData.commitSession)
+	// 			send operations  
+	//			the ack clone shares its immutable rows, the summary clone copies its entries
+	//            	System.out.println("Partner - begin to clone summary");
+	                localSummary = serverData.getSummary().clone();
+	//                System.out.println("Partner - finish to clone summary");
+	//                System.out.println(localSummary.toString());             
+	//                serverData.getAck().update(serverData.getId(), localSummary);
+	//                System.out.println("Partner - begin to clone ack");
+	                localAck = serverData.getAck().clone();
+	                snapshotTime = System.nanoTime() - start;
+	                start = System.nanoTime();
+	//                System.out.println("Partner - finish to clone ack");
+	//                System.out.println(localAck.toString());
+	//          System.out.println("Partner - collected local Summary and Ack");
+		        /**
+		         * Obtiene todas las operaciones ms recientes que las que tiene 
+		         * el otro lado (el resumen recibido) y las enva al otro lado.
+		         * 
+		         */           			
+	            event.operationsSent = OperationTransfer.send(channel, serverData.getLog().newerIterator(aeMsg.getSummary()),
+	                    serverData.getOperationBatchSize(), serverData.getOperationBatchBytes());          
+	//          System.out.println("Partner - sent operations");
 		        /**
-		         * Recopila una instantnea de localSummary y localAck. 
-		         * Se sincroniza para que la matriz o el resumen no cambie entre ellos. 
-		         * Tambin este es el nico lugar donde el vector local de la matriz 
-		         * se actualiza con el localSummary.
+		         * Enva el resumen y la matriz ack al otro lado
 		         * 
-		         */				
-// 			send operations  
-//			Synchronized them
-            synchronized (serverData) {
-//            	System.out.println("Partner - begin to clone summary");
-                localSummary = serverData.getSummary().clone();
-//                System.out.println("Partner - finish to clone summary");
-//                System.out.println(localSummary.toString());             
-//                serverData.getAck().update(serverData.getId(), localSummary);
-//                System.out.println("Partner - begin to clone ack");
-                localAck = serverData.getAck().clone();
-//                System.out.println("Partner - finish to clone ack");
-//                System.out.println(localAck.toString());
-            }          
-//          System.out.println("Partner - collected local Summary and Ack");
-	        /**
-	         * Obtiene todas las operaciones ms recientes que las que tiene 
-	         * el otro lado (el resumen recibido) y las enva al otro lado.
-	         * 
-	         */           			
-            for (Operation op : serverData.getLog().listNewer(aeMsg.getSummary())) {
-                out.writeObject(new MessageOperation(op));
-            }          
-//          System.out.println("Partner - sent operations");
-	        /**
-	         * Enva el resumen y la matriz ack al otro lado
-	         * 
-	         */           
-// 			send to originator: local's summary and ack			 
-            msg = new MessageAErequest(localSummary, localAck);  
-            out.writeObject(msg);			
-//          System.out.println("Partner - sent AE Request");
-//			receive operations
-			msg = (Message) in.readObject();		
-// 			System.out.println(Arrays.toString(arrrayoperations)); 
+		         */           
+	// 			send to originator: local's summary and ack			 
+	            msg = new MessageAErequest(localSummary, localAck);  
+	            channel.writeMessage(msg);			
+	            sendTime = System.nanoTime() - start;
+	//          System.out.println("Partner - sent AE Request");
+	//			receive operations
+				start = System.nanoTime();
+				msg = channel.readMessage();		
+	// 			System.out.println(Arrays.toString(arrrayoperations)); 
  
-            List<MessageOperation> listoperations = new Vector<MessageOperation>();
-//           
-		    /**
-	         * Recopila todas las operaciones que tiene el otro lado pero el servidor actual no.
-	         * La ejecucin sucede despus de que sepamos que TSAE tuvo xito.
-	         * 
-	         */     
-			while (msg.type() == MsgType.OPERATION){
-
-//			System.out.println("Partner - received operation: " + msg.getClass().toString());			
-			listoperations.add((MessageOperation) msg);
-//			System.out.println("Partner - remembered operation");	
-			msg = (Message) in.readObject();
-			}			
-// 			receive message to inform about the ending of the TSAE session
-			if (msg.type() == MsgType.END_TSAE){
-//			System.out.println("Partner - received EndTSAE");				
-// 			send and "end of TSAE session" message
-			msg = new MessageEndTSAE();  
-			out.writeObject(msg);			
-//			System.out.println("Partner - sent EndTSAE");	
-            /**
-             * TSEA tuvo xito => ejecuta las operaciones recopiladas 
-             * y actualizar los datos del servidor local.
-             * 
-             */
-			 synchronized (serverData) {
-                 for (MessageOperation op : listoperations) {
-                     if (op.getOperation().getType() == OperationType.ADD) {
-                         serverData.execOperation((AddOperation) op.getOperation());
-                     } else {
-                         serverData.execOperation((RemoveOperation) op.getOperation());
-                     }
-                 }
-                 serverData.getSummary().updateMax(aeMsg.getSummary());
-                 serverData.getAck().updateMax(aeMsg.getAck());
-                 serverData.getLog().purgeLog(serverData.getAck());
-             }
+	            List<Operation> listoperations = new Vector<Operation>();
+	//           
+			    /**
+		         * Recopila todas las operaciones que tiene el otro lado pero el servidor actual no.
+		         * La ejecucin sucede despus de que sepamos que TSAE tuvo xito.
+		         * 
+		         */     
+				msg = OperationTransfer.receive(channel, msg, listoperations);			
+				receiveTime = System.nanoTime() - start;
+	// 			receive message to inform about the ending of the TSAE session
+				if (msg.type() == MsgType.END_TSAE){
+	//			System.out.println("Partner - received EndTSAE");				
+	// 			send and "end of TSAE session" message
+				start = System.nanoTime();
+				msg = new MessageEndTSAE();  
+				channel.writeMessage(msg);			
+				sendTime += System.nanoTime() - start;
+				statistics.phases(snapshotTime, sendTime, receiveTime, -1);
+	//			System.out.println("Partner - sent EndTSAE");	
+	            /**
+	             * TSEA tuvo xito => ejecuta las operaciones recopiladas 
+	             * y actualizar los datos del servidor local.
+	             * 
+	             */
+				commit(serverData, listoperations, aeMsg);
+				completed = true;
+				channel.sessionCompleted();
+				event.operationsReceived = listoperations.size();
 			
-			}
+				}
+				}
+				event.bytesSent = traffic.sent - bytesSent;
+				event.bytesReceived = traffic.received - bytesReceived;
+				event.finish(completed, null);
+				event = null;
+				if (!completed || !channel.isReusable()) {
+					break;
+				}
+				// wait for the next session, without counting towards the limit of accepted sessions
+				waiting = true;
+				serverData.getSessionExecutor().inboundIdle();
+				socket.setSoTimeout(IDLE_TIMEOUT);
 			}
 
 			socket.close();		
 		} catch (IOException e) {
+			if (!waiting) {
+				// otherwise the connection is lost between sessions: the last one completed
+				failure = e;
+			}
 	    } catch (ClassNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		}	
+			failure = e;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		// completed sessions have already been recorded in the channel
+		if (channel != null && !completed) {
+			channel.sessionFailed();
+		}
+		if (!completed) {
+			statistics.acceptedSessionFailed(failure);
+		}
+		if (event != null) {
+			// the session was interrupted
+			event.finish(false, failure);
+		}
 //		System.out.println("...partner finished TSAE session ");
 		
 	}
+
+	/**
+	 * applies the result of a successful session: executes the operations
+	 * received and updates summary and ack with the ones of the originator
+	 * @param serverData
+	 * @param operations
+	 * @param aeMsg: AE request received from the originator
+	 */
+	static void commit(ServerData serverData, List<Operation> operations, MessageAErequest aeMsg){
+		long start = System.nanoTime();
+		serverData.commitSession(operations, aeMsg.getSummary(), aeMsg.getAck());
+		SessionStatistics statistics = serverData.getSessionStatistics();
+		statistics.commit(System.nanoTime() - start);
+		statistics.acceptedSessionCompleted();
+	}
 }
@@ -0,0 +1,713 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import recipes_service.ServerData;
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageAErequest;
+import recipes_service.communication.MessageEndTSAE;
+import recipes_service.communication.MsgType;
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Partner side of TSAE sessions served by a single thread with a
+ * selector, instead of a TSAESessionPartnerSide thread per connection.
+ *
+ * Each connection is driven as a state machine: it waits for the AE
+ * request of the originator, answers with the operations it misses and
+ * the local summary and ack, collects the operations of the originator
+ * and, when the end of the session arrives, commits them as
+ * TSAESessionPartnerSide does. Reusable connections then wait for the
+ * next session of the originator.
+ *
+ * The missing operations are encoded as the connection accepts them,
+ * so at most about WRITE_WINDOW bytes wait to be written however far
+ * behind the originator is. Commits, which take the locks of the
+ * server, run in the SessionExecutor; the connection does not read
+ * until its commit is done.
+ *
+ * Only binary sessions are served by the selector. Sessions of
+ * originators that use Java serialization are handed over to a
+ * TSAESessionPartnerSide, which runs in the SessionExecutor within
+ * its limit of accepted sessions. Their channels are not reusable:
+ * the task ends with the session, so no thread waits for an idle
+ * connection.
+ *
+ * The server is opt-in: the listener of the service still accepts
+ * connections and serves each one with a TSAESessionPartnerSide. To
+ * serve sessions with the selector, start a TSAESessionServer on the
+ * port of the server instead of that listener, as ConvergenceBenchmark
+ * does in nio mode.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class TSAESessionServer extends Thread {
+
+	// time after which a connection that does not progress is closed
+	private static final long IDLE_TIMEOUT = 30000;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// bytes queued to be written to a connection above which no more operations are encoded
+	private static final int WRITE_WINDOW = 256 * 1024;
+
+	// header written by ObjectOutputStream_DS: what every originator expects first
+	private static final byte[] JAVA_STREAM_HEADER = {
+		(byte) (ObjectStreamConstants.STREAM_MAGIC >> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+		(byte) (ObjectStreamConstants.STREAM_VERSION >> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
+
+	// states of a connection
+	private static final int READING_MAGIC = 0;
+	private static final int WAITING_AE_REQUEST = 1;
+	private static final int SENDING_OPERATIONS = 2;
+	private static final int RECEIVING_OPERATIONS = 3;
+	private static final int COMMITTING = 4;
+	private static final int CLOSING = 5;
+
+	private ServerData serverData;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private volatile boolean end = false;
+	// connections to hand over to TSAESessionPartnerSide threads
+	private List<Connection> handOvers = new ArrayList<Connection>();
+	// connections whose session has been committed by the SessionExecutor
+	private ConcurrentLinkedQueue<Connection> committed = new ConcurrentLinkedQueue<Connection>();
+
+	public TSAESessionServer(int port, ServerData serverData) throws IOException{
+		this(openServerChannel(port), serverData);
+	}
+
+	public TSAESessionServer(ServerSocketChannel serverChannel, ServerData serverData) throws IOException{
+		super("TSAESessionServerThread");
+		this.serverData = serverData;
+		this.serverChannel = serverChannel;
+		this.selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	private static ServerSocketChannel openServerChannel(int port) throws IOException{
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		return serverChannel;
+	}
+
+	/**
+	 * stops serving sessions and closes all connections
+	 */
+	public void shutdown(){
+		end = true;
+		selector.wakeup();
+	}
+
+	public void run(){
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while (!end) {
+				selector.select(IDLE_TIMEOUT / 2);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						((Connection) key.attachment()).handle(key);
+					}
+				}
+				if (!handOvers.isEmpty()) {
+					// cancelled keys are deregistered by the next selection
+					selector.selectNow();
+					for (Connection connection : handOvers) {
+						try {
+							connection.completeHandOver();
+						} catch (IOException e) {
+							close(connection.socketChannel);
+						}
+					}
+					handOvers.clear();
+				}
+				for (Connection connection = committed.poll(); connection != null; connection = committed.poll()) {
+					connection.committed();
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= IDLE_TIMEOUT / 2) {
+					closeIdle(now);
+					lastSweep = now;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				close(key.channel());
+			}
+			close(selector);
+		}
+	}
+
+	/**
+	 * accepts a connection. Errors only affect that connection (for
+	 * instance when it is reset or there are too many open files): the
+	 * server goes on serving the others
+	 */
+	private void accept(){
+		SocketChannel socketChannel;
+		try {
+			socketChannel = serverChannel.accept();
+		} catch (IOException e) {
+			return;
+		}
+		if (socketChannel == null) {
+			return;
+		}
+		try {
+			socketChannel.configureBlocking(false);
+			Connection connection = new Connection(socketChannel);
+			connection.key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+			connection.send(JAVA_STREAM_HEADER);
+		} catch (IOException e) {
+			close(socketChannel);
+		}
+	}
+
+	private void closeIdle(long now){
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection && ((Connection) attachment).state != COMMITTING
+					&& now - ((Connection) attachment).lastActivity > IDLE_TIMEOUT) {
+				((Connection) attachment).abort();
+			}
+		}
+	}
+
+	private static void close(Closeable closeable){
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * state of a session being served
+	 */
+	private class Connection {
+		private SocketChannel socketChannel;
+		private SelectionKey key;
+		private int state = READING_MAGIC;
+		private long lastActivity = System.currentTimeMillis();
+
+		// bytes received that do not form a complete frame yet, between position and limit.
+		// Frames are consumed by moving the position; the bytes left are compacted once per read
+		private ByteBuffer pending = ByteBuffer.allocate(256);
+		// length of the header of the originator, once it has been completely received
+		private int headerLength = -1;
+		private boolean headerReceived = false;
+
+		// complete frames, read by channel
+		private FrameQueue frames = new FrameQueue();
+		private ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private BinarySessionChannel channel;
+		private LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+		// bytes in writes not written yet
+		private long queued = 0;
+		private int headerSent = 0;
+
+		private MessageAErequest aeMsg;
+		private List<Operation> operations = new Vector<Operation>();
+
+		// operations still to send to the originator, and the AE request to send after them
+		private Iterator<Operation> outgoing;
+		private MessageAErequest answer;
+		private long snapshotTime;
+		private long sendStart;
+
+		// bytes exchanged over the connection, and when the previous session ended
+		private long sent = 0;
+		private long received = 0;
+		private long sessionSent = 0;
+		private long sessionReceived = 0;
+		private TSAESessionEvent event;
+
+		Connection(SocketChannel socketChannel){
+			this.socketChannel = socketChannel;
+			pending.flip();
+		}
+
+		void handle(SelectionKey key){
+			try {
+				if (key.isWritable()) {
+					write();
+					fill();
+				}
+				if (key.isValid() && key.isReadable()) {
+					read();
+				}
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		private void read() throws IOException{
+			readBuffer.clear();
+			int n = socketChannel.read(readBuffer);
+			if (n < 0) {
+				abort();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			received += n;
+			readBuffer.flip();
+			append(readBuffer);
+			if (state == READING_MAGIC) {
+				for (int i = 0; i < Math.min(pending.remaining(), BinarySessionChannel.MAGIC.length); i++) {
+					if (pending.get(pending.position() + i) != BinarySessionChannel.MAGIC[i]) {
+						handOver();
+						return;
+					}
+				}
+				if (pending.remaining() < BinarySessionChannel.MAGIC.length) {
+					return;
+				}
+				pending.position(pending.position() + BinarySessionChannel.MAGIC.length);
+				channel = new BinarySessionChannel(frames, output, serverData.getId(),
+						serverData.getSummary().getParticipants(), serverData.getSessionHistory(), null, true,
+						serverData.getSessionCompressionThreshold());
+				state = WAITING_AE_REQUEST;
+			}
+			processFrames();
+			flush();
+		}
+
+		/**
+		 * processes the complete frames received, until the session is
+		 * being committed or the connection is closing
+		 */
+		private void processFrames() throws IOException{
+			int length;
+			while (state != CLOSING && state != COMMITTING && (length = completeFrame()) > 0) {
+				// consumes the frame
+				frames.add(pending, length);
+				headerReceived = true;
+				process(channel.readMessage());
+			}
+		}
+
+		/**
+		 * @return length of the frame (preceded by the header of the
+		 * originator if it has not been received yet) at the position
+		 * of pending, or 0 if it has not been completely received
+		 * @throws IOException
+		 */
+		private int completeFrame() throws IOException{
+			int header = 0;
+			if (!headerReceived) {
+				if (headerLength < 0) {
+					// only parsed until the first frame arrives
+					headerLength = headerLength();
+					if (headerLength < 0) {
+						return 0;
+					}
+				}
+				header = headerLength;
+			}
+			// at most MAX_FRAME_SIZE
+			int size = BinaryCodec.frameSize(pending, pending.position() + header);
+			return size > 0 && header + size <= pending.remaining() ? header + size : 0;
+		}
+
+		/**
+		 * @return length of the header of the originator at the position
+		 * of pending, or -1 if it has not been completely received
+		 * @throws IOException
+		 */
+		private int headerLength() throws IOException{
+			ByteArrayInputStream bytes = new ByteArrayInputStream(pending.array(),
+					pending.arrayOffset() + pending.position(), pending.remaining());
+			try {
+				BinaryCodec.readHeader(new DataInputStream(bytes));
+				return pending.remaining() - bytes.available();
+			} catch (EOFException e) {
+				return -1;
+			}
+		}
+
+		private void process(Message msg) throws IOException{
+			switch (state) {
+			case WAITING_AE_REQUEST:
+				if (msg.type() != MsgType.AE_REQUEST) {
+					finish(false);
+					return;
+				}
+				aeMsg = (MessageAErequest) msg;
+				event = new TSAESessionEvent(TSAESessionEvent.PARTNER, serverData.getId());
+				if (event.isEnabled()) {
+					event.partner = String.valueOf(socketChannel.socket().getRemoteSocketAddress());
+				}
+				event.pooled = (sessionReceived > 0);
+				event.begin();
+				TimestampMatrix localAck;
+				TimestampVector localSummary;
+				long start = System.nanoTime();
+				// not an atomic snapshot: see ServerData.commitSession
+				localSummary = serverData.getSummary().clone();
+				localAck = serverData.getAck().clone();
+				snapshotTime = System.nanoTime() - start;
+				sendStart = System.nanoTime();
+				// the missing operations are encoded as the connection accepts them (see fill)
+				outgoing = serverData.getLog().newerIterator(aeMsg.getSummary());
+				answer = new MessageAErequest(localSummary, localAck);
+				state = SENDING_OPERATIONS;
+				fill();
+				break;
+			case RECEIVING_OPERATIONS:
+				if (OperationTransfer.collect(msg, operations)) {
+					return;
+				}
+				if (msg.type() != MsgType.END_TSAE) {
+					finish(false);
+					return;
+				}
+				channel.writeMessage(new MessageEndTSAE());
+				event.operationsReceived = operations.size();
+				commit();
+				break;
+			default:
+				// the originator does not send anything while it receives the operations
+				finish(false);
+				break;
+			}
+		}
+
+		/**
+		 * encodes the operations missing in the originator, and then the AE
+		 * request, while less than WRITE_WINDOW bytes are waiting to be written,
+		 * so a lagging originator does not make the whole log be buffered
+		 */
+		private void fill() throws IOException{
+			while (state == SENDING_OPERATIONS && queued + output.size() < WRITE_WINDOW) {
+				if (outgoing.hasNext()) {
+					event.operationsSent += OperationTransfer.sendFrame(channel, outgoing,
+							serverData.getOperationBatchSize(), serverData.getOperationBatchBytes());
+				} else {
+					channel.writeMessage(answer);
+					outgoing = null;
+					answer = null;
+					// includes the waits for the originator to accept the operations;
+					// the operations of the originator arrive as the selector delivers them: receiving is not measured
+					serverData.getSessionStatistics().phases(snapshotTime, System.nanoTime() - sendStart, -1, -1);
+					state = RECEIVING_OPERATIONS;
+				}
+				flush();
+			}
+		}
+
+		/**
+		 * commits the session in the SessionExecutor, so that the selector
+		 * does not wait for the locks of the server. The connection does
+		 * not read anything until the commit is done (see committed)
+		 */
+		private void commit() throws IOException{
+			final List<Operation> received = operations;
+			final MessageAErequest request = aeMsg;
+			aeMsg = null;
+			operations = new Vector<Operation>();
+			state = COMMITTING;
+			try {
+				serverData.getSessionExecutor().execute(new Runnable() {
+					public void run(){
+						try {
+							TSAESessionPartnerSide.commit(serverData, received, request);
+						} finally {
+							committed.add(Connection.this);
+							selector.wakeup();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the server is stopping
+				state = RECEIVING_OPERATIONS;
+				finish(false);
+			}
+		}
+
+		/**
+		 * called by the selector thread once the session has been committed
+		 */
+		void committed(){
+			if (state != COMMITTING) {
+				// the connection has been closed in the meantime
+				return;
+			}
+			try {
+				if (channel.isReusable()) {
+					// the originator can start another session over this connection
+					channel.sessionCompleted();
+					sessionEnded(true, null);
+					state = WAITING_AE_REQUEST;
+					processFrames();
+				} else {
+					finish(true);
+				}
+				flush();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * ends the session: the connection is closed once
+		 * everything written has been sent
+		 */
+		private void finish(boolean completed){
+			if (completed) {
+				channel.sessionCompleted();
+			} else {
+				channel.sessionFailed();
+				serverData.getSessionStatistics().acceptedSessionFailed(null);
+			}
+			sessionEnded(completed, null);
+			state = CLOSING;
+		}
+
+		/**
+		 * writes the TSAESessionEvent of the session in progress, if any.
+		 * Bytes still queued to be written are counted as sent
+		 */
+		private void sessionEnded(boolean completed, Exception failure){
+			if (event == null) {
+				return;
+			}
+			long unsent = queued + output.size();
+			event.bytesSent = sent + unsent - sessionSent;
+			event.bytesReceived = received - sessionReceived;
+			event.finish(completed, failure);
+			event = null;
+			sessionSent = sent + unsent;
+			sessionReceived = received;
+		}
+
+		/**
+		 * closes the connection. A session in progress fails; a reusable
+		 * connection waiting for its next session is just closed
+		 */
+		void abort(){
+			if (channel != null && (state == SENDING_OPERATIONS || state == RECEIVING_OPERATIONS)) {
+				channel.sessionFailed();
+				serverData.getSessionStatistics().acceptedSessionFailed(null);
+			}
+			closed();
+		}
+
+		private void fail(Exception cause){
+			if (channel != null && state != CLOSING && state != COMMITTING) {
+				channel.sessionFailed();
+				serverData.getSessionStatistics().acceptedSessionFailed(cause);
+				sessionEnded(false, cause);
+			}
+			closed();
+		}
+
+		private void closed(){
+			if (state == COMMITTING) {
+				// the end of the session has been exchanged: it completes, only the connection is lost
+				channel.sessionCompleted();
+				sessionEnded(true, null);
+			} else {
+				sessionEnded(false, null);
+			}
+			outgoing = null;
+			state = CLOSING;
+			key.cancel();
+			close(socketChannel);
+		}
+
+		/**
+		 * the originator uses Java serialization: the session continues
+		 * in a TSAESessionPartnerSide thread
+		 */
+		private void handOver(){
+			state = CLOSING;
+			key.cancel();
+			handOvers.add(this);
+		}
+
+		/**
+		 * called once the key of the connection has been deregistered
+		 */
+		void completeHandOver() throws IOException{
+			byte[] received = new byte[pending.remaining()];
+			pending.get(received);
+			socketChannel.configureBlocking(true);
+			new TSAESessionPartnerSide(socketChannel.socket(), serverData, received, headerSent).start();
+		}
+
+		void send(byte[] bytes) throws IOException{
+			writes.add(ByteBuffer.wrap(bytes));
+			queued += bytes.length;
+			write();
+		}
+
+		private void flush() throws IOException{
+			if (output.size() > 0) {
+				writes.add(ByteBuffer.wrap(output.toByteArray()));
+				queued += output.size();
+				output.reset();
+			}
+			write();
+		}
+
+		private void write() throws IOException{
+			while (!writes.isEmpty()) {
+				ByteBuffer buffer = writes.getFirst();
+				int n = socketChannel.write(buffer);
+				sent += n;
+				queued -= n;
+				if (state == READING_MAGIC) {
+					headerSent += n;
+				}
+				if (buffer.hasRemaining()) {
+					key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+					return;
+				}
+				writes.removeFirst();
+				lastActivity = System.currentTimeMillis();
+			}
+			if (state == CLOSING) {
+				key.cancel();
+				close(socketChannel);
+			} else {
+				key.interestOps(readInterest());
+			}
+		}
+
+		/**
+		 * @return OP_READ, unless the session is being committed
+		 */
+		private int readInterest(){
+			return state == COMMITTING ? 0 : SelectionKey.OP_READ;
+		}
+
+		/**
+		 * appends bytes to pending. The bytes of the frames consumed are
+		 * dropped here, once per read, not once per frame
+		 */
+		private void append(ByteBuffer bytes){
+			if (pending.remaining() + bytes.remaining() > pending.capacity()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.remaining() + bytes.remaining()));
+				grown.put(pending);
+				pending = grown;
+			} else {
+				pending.compact();
+			}
+			pending.put(bytes);
+			pending.flip();
+		}
+	}
+
+	/**
+	 * input of the channel of a connection: only holds complete frames,
+	 * so that reading a message never waits for the network
+	 */
+	private static class FrameQueue extends InputStream {
+		private LinkedList<byte[]> frames = new LinkedList<byte[]>();
+		private int position = 0;
+		private int available = 0;
+
+		/**
+		 * @param bytes: the frame is read from them
+		 * @param length
+		 */
+		void add(ByteBuffer bytes, int length){
+			byte[] frame = new byte[length];
+			bytes.get(frame);
+			frames.add(frame);
+			available += length;
+		}
+
+		public int available(){
+			return available;
+		}
+
+		public int read(){
+			if (frames.isEmpty()) {
+				return -1;
+			}
+			byte[] frame = frames.getFirst();
+			int b = frame[position++] & 0xFF;
+			advance(frame, 1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len){
+			if (len == 0) {
+				return 0;
+			}
+			if (frames.isEmpty()) {
+				return -1;
+			}
+			byte[] frame = frames.getFirst();
+			int n = Math.min(len, frame.length - position);
+			System.arraycopy(frame, position, b, off, n);
+			position += n;
+			advance(frame, n);
+			return n;
+		}
+
+		private void advance(byte[] frame, int n){
+			available -= n;
+			if (position == frame.length) {
+				frames.removeFirst();
+				position = 0;
+			}
+		}
+	}
+}
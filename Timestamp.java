@@ -19,6 +19,10 @@
 */
 
 package recipes_service.tsae.data_structures;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
@@ -39,15 +43,42 @@ public class Timestamp implements Serializable{
 	 * to other operations issued by that node.
 	 */
 	
-	private String hostid;
+	// the host is kept as its ordinal in the table of ParticipantRegistry,
+	// but serialized as its id, as before
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("hostid", String.class),
+		new ObjectStreamField("seqnumber", Long.TYPE)
+	};
+
+	private transient int host;
+	// id of a host that has no ordinal (host is -1): it is not a participant of this process
+	private transient String unknownHost;
 	private long seqnumber;
 	
 	public Timestamp(String nodeid, long seqnumber){
-		this.hostid = nodeid;
+		setHost(nodeid);
 		this.seqnumber = seqnumber;
 	}
+
+	private void setHost(String nodeid){
+		this.host = ParticipantRegistry.hostOrdinal(nodeid);
+		this.unknownHost = (host < 0 ? nodeid : null);
+	}
+
 	public String getHostid() {
-		return hostid;
+		return host < 0 ? unknownHost : ParticipantRegistry.hostId(host);
+	}
+
+	/**
+	 * @return ordinal of the host in the table of ParticipantRegistry (-1 if it has no host
+	 * or the host is not a participant of this process). Only meaningful inside this process
+	 */
+	public int getHostOrdinal() {
+		return host;
+	}
+	
+	public long getSeqnumber() {
+		return seqnumber;
 	}
 	
 	public boolean isNullTimestamp(){
@@ -83,12 +114,12 @@ public class Timestamp implements Serializable{
 		}
 		
 		Timestamp other = (Timestamp) obj;
-		if (hostid == null) {
-			if (other.hostid != null) {
-				return false;
+		if (host != other.host || host < 0) {
+			// a host without ordinal may have got one since the other timestamp was created
+			String hostid = getHostid();
+			if (hostid == null ? other.getHostid() != null : !hostid.equals(other.getHostid())) {
+				return false;
 			}
-		} else if (!hostid.equals(other.hostid)) {
-			return false;
 		}
 		if (seqnumber != other.seqnumber) {
 			return false;
@@ -100,7 +131,20 @@ public class Timestamp implements Serializable{
 	 * toString
 	 */
 	public String toString(){
-		return hostid+":   "+seqnumber;
+		return getHostid()+":   "+seqnumber;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("hostid", getHostid());
+		fields.put("seqnumber", seqnumber);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		setHost((String) fields.get("hostid", null));
+		seqnumber = fields.get("seqnumber", 0L);
 	}
 	
 }
@@ -20,11 +20,16 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -35,143 +40,387 @@ import java.util.Map;
 public class TimestampMatrix implements Serializable{
 
 	private static final long serialVersionUID = 3331148113387926667L;
-	ConcurrentHashMap<String, TimestampVector> timestampMatrix = new ConcurrentHashMap<String, TimestampVector>();
-	
+	/**
+	 * Dense matrix: rows[i][j] is the sequence number of the last operation
+	 * issued by participant j that participant i is known to have received.
+	 * Rows and columns are indexed by the slots of the ParticipantRegistry.
+	 *
+	 * The rows and their versions are kept in an immutable State that
+	 * updates replace: only the rows that change are copied, the others
+	 * are shared. Readers and clone just read the reference.
+	 *
+	 * The minimum of each column (and the row that holds it) is cached and
+	 * maintained incrementally. A column is only recomputed when the
+	 * value of the row holding its minimum increases.
+	 */
+	// serialized with the field of the matrix of previous versions, a map from host id
+	// to its row, so that they can still read it, and with the participants and the
+	// rows in slot order, which previous versions ignore
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("timestampMatrix", ConcurrentHashMap.class),
+		new ObjectStreamField("participants", String[].class),
+		new ObjectStreamField("rows", long[][].class)
+	};
+
+	private transient ParticipantRegistry participants;
+	private transient volatile State state;
+
+	// column minimum cache (allocated on first use, guarded by this)
+	private transient long[] columnMin;
+	private transient int[] columnMinRow;
+	private transient boolean[] columnDirty;
+
+	/**
+	 * rows of the matrix. Each time a row changes the version of
+	 * the matrix is increased and stored as the version of the row.
+	 * Neither the arrays nor the rows are modified once published
+	 */
+	private static class State {
+		final long[][] rows;
+		final long[] rowVersion;
+		final long version;
+
+		State(long[][] rows, long[] rowVersion, long version){
+			this.rows = rows;
+			this.rowVersion = rowVersion;
+			this.version = version;
+		}
+	}
+
 	public TimestampMatrix(List<String> participants){
 		// create and empty TimestampMatrix
-        for (String participant : participants) {
-            timestampMatrix.put(participant, new TimestampVector(participants));
-        }
+		this.participants = ParticipantRegistry.of(participants);
+		int n = this.participants.size();
+		long[][] rows = new long[n][n];
+		for (long[] row : rows) {
+			Arrays.fill(row, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+		}
+		this.state = new State(rows, new long[n], 0);
 	}
-	
-	
+
+	/**
+	 * Creates a matrix over the given rows, laid out as the slots
+	 * of participants. The arrays are not copied: they must not
+	 * be modified afterwards.
+	 * @param participants
+	 * @param rows
+	 */
+	public TimestampMatrix(ParticipantRegistry participants, long[][] rows){
+		this.participants = participants;
+		this.state = new State(rows, new long[rows.length], 0);
+	}
+
+	private TimestampMatrix(ParticipantRegistry participants, State state){
+		this.participants = participants;
+		this.state = state;
+	}
+
 	/**
 	 * Merges two timestamp matrix taking the elementwise maximum
 	 * @param tsMatrix
 	 */
 	public synchronized void updateMax(TimestampMatrix tsMatrix){
-
-		/**
-         * Revisa todos los elementos de la matriz pasada. 
-         * Si existe un Vector en ambas matrices se actualiza 
-         * para tener el vector mximo.
-         * 
-         */
-        for (Map.Entry<String, TimestampVector> entry : tsMatrix.timestampMatrix.entrySet()) {
-            String key = entry.getKey();
-            TimestampVector otherValue = entry.getValue();
-
-            TimestampVector thisValue = this.timestampMatrix.get(key);
-            if (thisValue != null) {
-                thisValue.updateMax(otherValue);
-            }
-        }
+		if (tsMatrix == null) {
+			return;
+		}
+		State current = state;
+		boolean aligned = tsMatrix.participants == this.participants;
+		State otherState = aligned ? tsMatrix.state : null;
+		long[][] rows = null;
+		long[] rowVersion = null;
+		long version = current.version;
+		for (int i = 0; i < current.rows.length; i++) {
+			long[] other = aligned ? otherState.rows[i] : tsMatrix.getRow(participants.getId(i), participants);
+			if (other == null) {
+				continue;
+			}
+			long[] row = current.rows[i];
+			long[] updated = null;
+			for (int j = 0; j < row.length; j++) {
+				if (other[j] > row[j]) {
+					if (updated == null) {
+						updated = Arrays.copyOf(row, row.length);
+					}
+					updated[j] = other[j];
+					cellChanged(i, j, row[j], other[j]);
+				}
+			}
+			if (updated != null) {
+				if (rows == null) {
+					rows = Arrays.copyOf(current.rows, current.rows.length);
+					rowVersion = Arrays.copyOf(current.rowVersion, current.rowVersion.length);
+				}
+				rows[i] = updated;
+				rowVersion[i] = ++version;
+			}
+		}
+		if (rows != null) {
+			state = new State(rows, rowVersion, version);
+		}
 	}
-	
+
 	/**
 	 * substitutes current timestamp vector of node for tsVector
 	 * @param node
 	 * @param tsVector
 	 */
 	public synchronized void update(String node, TimestampVector tsVector){
-		 this.timestampMatrix.replace(node, tsVector);
+		int i = participants.indexOf(node);
+		if (i < 0 || tsVector == null) {
+			return;
+		}
+		State current = state;
+		long[] row = current.rows[i];
+		long[] values;
+		if (tsVector.getParticipants() == participants) {
+			values = tsVector.getSeqnumbers();
+		} else {
+			values = Arrays.copyOf(row, row.length);
+			for (int j = 0; j < values.length; j++) {
+				Timestamp ts = tsVector.getLast(participants.getId(j));
+				if (ts != null) {
+					values[j] = ts.getSeqnumber();
+				}
+			}
+		}
+		boolean changed = false;
+		for (int j = 0; j < row.length; j++) {
+			if (values[j] != row[j]) {
+				cellChanged(i, j, row[j], values[j]);
+				changed = true;
+			}
+		}
+		if (changed) {
+			long[][] rows = Arrays.copyOf(current.rows, current.rows.length);
+			long[] rowVersion = Arrays.copyOf(current.rowVersion, current.rowVersion.length);
+			rows[i] = values;
+			rowVersion[i] = current.version + 1;
+			state = new State(rows, rowVersion, current.version + 1);
+		}
 	}
-	
+
 	/**
-	 * 
-	 * @return a timestamp vector containing, for each node, 
+	 *
+	 * @return a timestamp vector containing, for each node,
 	 * the timestamp known by all participants
 	 */
-	public synchronized TimestampVector minTimestampVector(){
-	
-		TimestampVector minTsV = null; 
-
-        /**
-         * Recorre todos los vectores de la matriz. Utiliza el primer vector 
-         * para la inicializacin y ejecuta mergemin entre este vector y todos los dems. 
-         * Al final, el vector es el MinTimestampVector de la matriz actual.
-         *
-         */
-
-		
-		for (TimestampVector matrixVector : this.timestampMatrix.values()) {
-            if (minTsV == null)
-            	minTsV = matrixVector.clone();
-            else
-            	minTsV.mergeMin(matrixVector);
-        }
-		
-		return minTsV;	
+	public TimestampVector minTimestampVector(){
+		AckMinimumEvent event = new AckMinimumEvent();
+		event.begin();
+		TimestampVector min;
+		int recomputed = 0;
+		synchronized (this) {
+			long[][] rows = state.rows;
+			if (rows.length == 0) {
+				return null;
+			}
+			initCaches(rows.length);
+			for (int j = 0; j < columnDirty.length; j++) {
+				if (columnDirty[j]) {
+					recomputeColumnMin(rows, j);
+					recomputed++;
+				}
+			}
+			min = new TimestampVector(participants, Arrays.copyOf(columnMin, columnMin.length));
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.participants = min.getParticipants().size();
+			event.recomputedColumns = recomputed;
+			event.commit();
+		}
+		return min;
 	}
-	
+
 	/**
-	 * clone
+	 * Keeps the cached minimum of column j up to date after
+	 * rows[i][j] changed from old to value.
 	 */
-	
-	 private TimestampMatrix() {
-	    }
-	 
-	public synchronized TimestampMatrix clone(){
-		// clone Matrix	
-        TimestampMatrix clonedMatrix = new TimestampMatrix();
+	private void cellChanged(int i, int j, long old, long value){
+		if (columnDirty == null || columnDirty[j]) {
+			return;
+		}
+		if (value < columnMin[j]) {
+			columnMin[j] = value;
+			columnMinRow[j] = i;
+		} else if (value > old && columnMinRow[j] == i) {
+			// the row holding the minimum increased: the minimum may have moved
+			columnDirty[j] = true;
+		}
+	}
 
-        for (Map.Entry<String, TimestampVector> entry : timestampMatrix.entrySet()) {
-            clonedMatrix.timestampMatrix.put(entry.getKey(), entry.getValue().clone());
-        }
+	private void recomputeColumnMin(long[][] rows, int j){
+		int minRow = 0;
+		long min = rows[0][j];
+		for (int i = 1; i < rows.length; i++) {
+			if (rows[i][j] < min) {
+				min = rows[i][j];
+				minRow = i;
+			}
+		}
+		columnMin[j] = min;
+		columnMinRow[j] = minRow;
+		columnDirty[j] = false;
+	}
 
-        return clonedMatrix;       
+	private void initCaches(int n){
+		if (columnDirty != null) {
+			return;
+		}
+		columnMin = new long[n];
+		columnMinRow = new int[n];
+		columnDirty = new boolean[n];
+		Arrays.fill(columnDirty, true);
 	}
-	
+
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		long[][] rows = state.rows;
+		ConcurrentHashMap<String, TimestampVector> timestampMatrix = new ConcurrentHashMap<String, TimestampVector>();
+		for (int i = 0; i < rows.length; i++) {
+			timestampMatrix.put(participants.getId(i), new TimestampVector(participants, rows[i]));
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("timestampMatrix", timestampMatrix);
+		fields.put("participants", participants.getIds().toArray(new String[rows.length]));
+		fields.put("rows", rows);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		String[] ids = (String[]) fields.get("participants", null);
+		long[][] rows = (long[][]) fields.get("rows", null);
+		if (ids == null || rows == null) {
+			// written by a previous version: the map does not keep the order of the participants
+			Map<String, TimestampVector> timestampMatrix = (Map<String, TimestampVector>) fields.get("timestampMatrix", null);
+			if (timestampMatrix == null) {
+				throw new InvalidObjectException("timestamp matrix without rows");
+			}
+			ids = timestampMatrix.keySet().toArray(new String[timestampMatrix.size()]);
+			Arrays.sort(ids);
+			rows = new long[ids.length][ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				TimestampVector row = timestampMatrix.get(ids[i]);
+				for (int j = 0; j < ids.length; j++) {
+					Timestamp last = row.getLast(ids[j]);
+					rows[i][j] = (last == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : last.getSeqnumber());
+				}
+			}
+		}
+		boolean square = (rows.length == ids.length);
+		for (int i = 0; square && i < rows.length; i++) {
+			square = (rows[i] != null && rows[i].length == ids.length);
+		}
+		if (!square) {
+			throw new InvalidObjectException("timestamp matrix rows do not match its " + ids.length + " participants");
+		}
+		participants = ParticipantRegistry.received(Arrays.asList(ids));
+		state = new State(rows, new long[rows.length], 0);
+	}
+
+	/**
+	 * clone: shares the current (immutable) rows
+	 */
+	public TimestampMatrix clone(){
+		return new TimestampMatrix(participants, state);
+	}
+
 	/**
 	 * equals
 	 */
-    @Override
-    public boolean equals(Object obj) {
-
-        if (obj == null) {
-//        	System.out.println("Es nulo TSM");
-            return false;
-        } else if (this == obj) {
-//        	System.out.println("No es nulo y es objeto TSM");
-            return true;
-        } else if ((obj instanceof TimestampMatrix)) {
-        	
-        	 TimestampMatrix other = (TimestampMatrix) obj;
-
-           for (String name: this.timestampMatrix.keySet()) {
-             
-          return this.timestampMatrix.get(name).equals(other.timestampMatrix.get(name));
-        }
-                	
-    //    	System.out.println("No es nulo pero no es instancia de TimeStampVector TSM");
-
-        }
-		return false;       
-    }
-	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null) {
+			return false;
+		} else if (this == obj) {
+			return true;
+		} else if (!(obj instanceof TimestampMatrix)) {
+			return false;
+		}
+		TimestampMatrix other = (TimestampMatrix) obj;
+		if (other.participants != this.participants
+				&& !other.participants.getIds().equals(this.participants.getIds())) {
+			return false;
+		}
+		return Arrays.deepEquals(this.state.rows, other.state.rows);
+	}
+
 	/**
 	 * toString
 	 */
 	@Override
-	public synchronized String toString() {
+	public String toString() {
+		long[][] rows = state.rows;
 		String all="";
-		if(timestampMatrix==null){
-			return all;
-		}
-		for(Enumeration<String> en=timestampMatrix.keys(); en.hasMoreElements();){
-			String name=en.nextElement();
-			if(timestampMatrix.get(name)!=null)
-				all+=name+":   "+timestampMatrix.get(name)+"\n";
+		for(int i=0; i<rows.length; i++){
+			all+=participants.getId(i)+":   "+new TimestampVector(participants, rows[i])+"\n";
 		}
 		return all;
 	}
-	
+
+	/**
+	 * @return the registry that maps nodes to rows and columns of this matrix
+	 */
+	public ParticipantRegistry getParticipants(){
+		return participants;
+	}
+
+	/**
+	 * @return version of this matrix: it increases each time a row changes
+	 */
+	public long getVersion(){
+		return state.version;
+	}
+
+	/**
+	 * @param i
+	 * @return version of the matrix when row i last changed
+	 */
+	public long getRowVersion(int i){
+		return state.rowVersion[i];
+	}
+
+	/**
+	 * @param i
+	 * @return a copy of row i
+	 */
+	public long[] getRow(int i){
+		long[] row = state.rows[i];
+		return Arrays.copyOf(row, row.length);
+	}
+
+	/**
+	 * @param node
+	 * @param target
+	 * @return a copy of the row of node with its columns laid out
+	 * as the slots of target, or null if node is not a participant.
+	 * Columns unknown to this matrix hold the null timestamp.
+	 */
+	public long[] getRow(String node, ParticipantRegistry target){
+		int i = participants.indexOf(node);
+		if (i < 0) {
+			return null;
+		}
+		long[] source = state.rows[i];
+		long[] row = new long[target.size()];
+		for (int j = 0; j < row.length; j++) {
+			int k = participants.indexOf(target.getId(j));
+			row[j] = k < 0 ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : source[k];
+		}
+		return row;
+	}
+
 	/**
 	 * @param node
 	 * @return the timestamp vector of node in this timestamp matrix
 	 */
 	@SuppressWarnings("unused")
-	private synchronized TimestampVector getTimestampVector(String node){	
-		 return this.timestampMatrix.get(node);
+	private TimestampVector getTimestampVector(String node){
+		int i = participants.indexOf(node);
+		if (i < 0) {
+			return null;
+		}
+		return new TimestampVector(participants, state.rows[i]);
 	}
 }
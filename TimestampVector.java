@@ -20,13 +20,17 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * @author Joan-Manuel Marques
@@ -38,183 +42,253 @@ public class TimestampVector implements Serializable{
 	private static final long serialVersionUID = -765026247959198886L;
 	/**
 	 * This class stores a summary of the timestamps seen by a node.
-	 * For each node, stores the timestamp of the last received operation.
+	 * For each node, stores the sequence number of the last received
+	 * operation. Nodes are mapped to a position of the array
+	 * by the ParticipantRegistry of the group.
+	 *
+	 * Entries are updated in place, so a local write (updateTimestamp)
+	 * costs the same whatever the size of the group. Updates are
+	 * serialized by the lock of the vector; readers do not lock.
+	 * clone shares the entries instead of copying them (copy on write):
+	 * the vector and its clone mark them as shared, and the first update
+	 * of either one copies them before changing them. Shared entries
+	 * never change, so a clone is a consistent snapshot that costs the
+	 * same whatever the size of the group.
 	 */
-	
-	private ConcurrentHashMap<String, Timestamp> timestampVector= new ConcurrentHashMap<String, Timestamp>();
-	
+
+	// serialized with the field of the vector of previous versions, a map from host id
+	// to timestamp, so that they can still read it, and with the participants and their
+	// sequence numbers in slot order, which previous versions ignore
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("timestampVector", ConcurrentHashMap.class),
+		new ObjectStreamField("participants", String[].class),
+		new ObjectStreamField("seqnumbers", long[].class)
+	};
+
+	private transient ParticipantRegistry participants;
+	private transient volatile AtomicLongArray seqnumbers;
+	// seqnumbers is shared with a clone: copy it before updating it (guarded by this)
+	private transient boolean shared;
+
 	public TimestampVector (List<String> participants){
 		// create and empty TimestampVector
-		for (Iterator<String> it = participants.iterator(); it.hasNext(); ){
-			String id = it.next();
-			// when sequence number of timestamp < 0 it means that the timestamp is the null timestamp
-			timestampVector.put(id, new Timestamp(id, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER));
+		this.participants = ParticipantRegistry.of(participants);
+		long[] seqnumbers = new long[this.participants.size()];
+		// when sequence number of timestamp < 0 it means that the timestamp is the null timestamp
+		Arrays.fill(seqnumbers, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+		this.seqnumbers = new AtomicLongArray(seqnumbers);
+	}
+
+	/**
+	 * Creates a vector with the given sequence numbers, laid out
+	 * as the slots of participants. The array is copied.
+	 * @param participants
+	 * @param seqnumbers
+	 */
+	public TimestampVector (ParticipantRegistry participants, long[] seqnumbers){
+		this.participants = participants;
+		this.seqnumbers = new AtomicLongArray(seqnumbers);
+	}
+
+	private TimestampVector (ParticipantRegistry participants, AtomicLongArray sharedSeqnumbers){
+		this.participants = participants;
+		this.seqnumbers = sharedSeqnumbers;
+		this.shared = true;
+	}
+
+	/**
+	 * @return the entries of this vector, ready to be updated in place.
+	 * Called under the lock of the vector
+	 */
+	private AtomicLongArray writable(){
+		if (shared) {
+			seqnumbers = new AtomicLongArray(getSeqnumbers());
+			shared = false;
 		}
+		return seqnumbers;
 	}
-	
+
 	/**
-	 * Updates the timestamp vector with a new timestamp. 
+	 * Updates the timestamp vector with a new timestamp.
 	 * @param timestamp
 	 */
 	public synchronized void updateTimestamp(Timestamp timestamp){
-		
-	   /**
-		* El mtodo updateTimestamp debe actualizar el vector poniendo el timestamp que se pasa por parmetro
-		* en la posicin correspondiente (la del hostid que corresponda).
-		*/
-		if (timestamp != null) {
-			this.timestampVector.put(timestamp.getHostid(), timestamp);
-	    }
-			
-	}
-	
+		if (timestamp == null) {
+			return;
+		}
+		int slot = participants.indexOf(timestamp.getHostOrdinal());
+		if (slot >= 0) {
+			writable().set(slot, timestamp.getSeqnumber());
+		}
+	}
+
 	/**
 	 * merge in another vector, taking the elementwise maximum
 	 * @param tsVector (a timestamp vector)
 	 */
 	public synchronized void updateMax(TimestampVector tsVector){
-//        StringBuilder sb = new StringBuilder("TimestampVector - UpdateMax... This vector: ");
-//        sb.append(this);
-//        sb.append(" - tsVector vector: ");
-//        sb.append(tsVector);
-
-        /**
-         * Recorre todos los nodos del vector actual y busca el mismo nodo en el otro vector. 
-         * Si existe uno igual y su timestamp es mayor que la actual, 
-         * la marca de tiempo actual se reemplaza.
-         * 
-         */		
-        for (String node : this.timestampVector.keySet()) {
-            Timestamp otherTimestamp = tsVector.getLast(node);
-
-            if (otherTimestamp == null) {
-                continue;
-            } else if (this.getLast(node).compare(otherTimestamp) < 0) {
-                this.timestampVector.replace(node, otherTimestamp);
-            }
-        }
-//        sb.append("Updated This Vector: ");
-//        sb.append(this);
-//        System.out.println(sb);		
-	}
-	
+		if (tsVector == null) {
+			return;
+		}
+		AtomicLongArray seqnumbers = writable();
+		if (tsVector.participants == this.participants) {
+			for (int i = 0; i < seqnumbers.length(); i++) {
+				long other = tsVector.seqnumbers.get(i);
+				if (other > seqnumbers.get(i)) {
+					seqnumbers.set(i, other);
+				}
+			}
+		} else {
+			// vectors of different groups: match entries by host id
+			for (int i = 0; i < seqnumbers.length(); i++) {
+				Timestamp otherTimestamp = tsVector.getLast(participants.getId(i));
+				if (otherTimestamp != null && otherTimestamp.getSeqnumber() > seqnumbers.get(i)) {
+					seqnumbers.set(i, otherTimestamp.getSeqnumber());
+				}
+			}
+		}
+	}
+
 	/**
-	 * 
+	 *
 	 * @param node
 	 * @return the last timestamp issued by node that has been
 	 * received.
 	 */
-	public synchronized Timestamp getLast(String node){	
-		 return this.timestampVector.get(node);
+	public Timestamp getLast(String node){
+		int slot = participants.indexOf(node);
+		if (slot < 0) {
+			return null;
+		}
+		return new Timestamp(node, seqnumbers.get(slot));
 	}
-		// return generated automatically. Remove it when implementing your solution 
-	
-	
+
 	/**
-	 * Fusiona el vector timestamp local con el vector timestamp tsVector 
-	 * tomando el timestamp ms pequeo para cada nodo. Despus de la fusin, 
-	 * el nodo local tendr la marca de tiempo ms pequea para cada nodo.
-	 * 
+	 * Merges local timestamp vector with tsVector timestamp vector taking
+	 * the smallest timestamp for each node.
+	 * After merging, local node will have the smallest timestamp for each node.
+	 * Entries of tsVector for nodes that are not members of
+	 * the group of this vector are ignored.
 	 *  @param tsVector (timestamp vector)
 	 */
 	public synchronized void mergeMin(TimestampVector tsVector){
-		
-		 if (tsVector == null) {
-	            return;
-	        }
-//	        StringBuilder sb = new StringBuilder("TimestampVector - MergeMin... This vector: ");
-//	        sb.append(this);
-//	        sb.append(" - tsVector vector: ");
-//	        sb.append(tsVector);
-
-	        /**
-	         * Similar a updateMax con la diferencia de que tambin agrega nuevas entradas 
-	         * si an no existen en el vector de timestamp actual. Esto se debe a la forma en 
-	         * que esta funcin es utilizada por TimetampMatrix.
-	         * 
-	         */
-	        for (Map.Entry<String, Timestamp> entry : tsVector.timestampVector.entrySet()) {
-	            String node = entry.getKey();
-	            Timestamp otherTimestamp = entry.getValue();
-	            Timestamp thisTimestamp = this.getLast(node);
-	            
-	            if (thisTimestamp == null) {
-	                this.timestampVector.put(node, otherTimestamp);
-	            } else if (otherTimestamp.compare(thisTimestamp) < 0) {
-	                this.timestampVector.replace(node, otherTimestamp);
-	            }
-	        }
-//	        sb.append("Updated This Vector: ");
-//	        sb.append(this);
-//	        System.out.println(sb);
-	
-	}
-
-	
+		if (tsVector == null) {
+			return;
+		}
+		AtomicLongArray seqnumbers = writable();
+		if (tsVector.participants == this.participants) {
+			for (int i = 0; i < seqnumbers.length(); i++) {
+				long other = tsVector.seqnumbers.get(i);
+				if (other < seqnumbers.get(i)) {
+					seqnumbers.set(i, other);
+				}
+			}
+		} else {
+			for (int i = 0; i < seqnumbers.length(); i++) {
+				Timestamp otherTimestamp = tsVector.getLast(participants.getId(i));
+				if (otherTimestamp != null && otherTimestamp.getSeqnumber() < seqnumbers.get(i)) {
+					seqnumbers.set(i, otherTimestamp.getSeqnumber());
+				}
+			}
+		}
+	}
+
+	/**
+	 * clone: shares the entries until the vector or the clone is updated
+	 */
+	public synchronized TimestampVector clone(){
+		shared = true;
+		return new TimestampVector(participants, seqnumbers);
+	}
+
 	/**
-	 * clone
+	 * @return the registry that maps nodes to positions of this vector
 	 */
-//	@Override
-	public  TimestampVector clone(){
-			
-		/**
-		* 1. Crear la tabla con los participantes
-		* Crear tabla utilizando el constructor con la medida del n de participantes. No vector.		
-		* Crear el nuevo TimestampVector con los participantes
-		*/
-		String[]participants =timestampVector.keySet().toArray(new String[timestampVector.keySet().size()]);
-		TimestampVector timeclone = new TimestampVector(Arrays.asList(participants));   
-
-		for (String node : this.timestampVector.keySet()) {
-	            Timestamp thisTimestamp = this.getLast(node);
-//	            System.out.println("Timestamp antes update: " + timeclone.getLast(node));
-	            timeclone.updateTimestamp(thisTimestamp);
-//	            System.out.println("Timestamp despues update: '" + timeclone.getLast(node) + "' debe ser igual que '" + timestampVector.get(node) + "'");            
-	    }   
-//		System.out.println("Equal0: " + timeclone.toString()==timestampVector.toString());
-//		System.out.println("Equal1: " + timestampVector.equals(timeclone));
-//      System.out.println("Equal2: " + timeclone.equals(timestampVector));
-      		
-		return timeclone; 
-		
-	}
-		// return generated automatically. Remove it when implementing your solution 
+	public ParticipantRegistry getParticipants(){
+		return participants;
+	}
+
+	/**
+	 * @return a copy of the sequence numbers, in registry order
+	 */
+	long[] getSeqnumbers(){
+		AtomicLongArray seqnumbers = this.seqnumbers;
+		long[] copy = new long[seqnumbers.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = seqnumbers.get(i);
+		}
+		return copy;
+	}
 
+	/**
+	 * @param slot
+	 * @return sequence number of the last operation received from the node in slot
+	 */
+	public long getSeqnumber(int slot){
+		return seqnumbers.get(slot);
+	}
 
 	public boolean equals(TimestampVector tsVector){
+		if (tsVector == null) {
+			return false;
+		}
+		if (this == tsVector) {
+			return true;
+		}
+		if (tsVector.participants != this.participants
+				&& !tsVector.participants.getIds().equals(this.participants.getIds())) {
+			return false;
+		}
+		return Arrays.equals(this.getSeqnumbers(), tsVector.getSeqnumbers());
+	}
 
-//		System.out.print("Inicio equals timestamp");
-	        if (tsVector == null) {
-	            return false;
-	        } else if (!(tsVector instanceof TimestampVector)) {
-	            return false;
-	        }
-//	        System.out.print(". No es null y es Instancia de TimestampVector");
-	        
-	        TimestampVector other = (TimestampVector) tsVector;
-	        
-	        if (!other.timestampVector.equals(this.timestampVector)) {
-//	        	System.out.println("Equal interno no es igual");
-	        	return false;                 
-	        }  	        
-	        return this.timestampVector.equals(other.timestampVector);	        
-	    }
-
-		// return generated automatically. Remove it when implementing your solution        
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		long[] current = getSeqnumbers();
+		ConcurrentHashMap<String, Timestamp> timestampVector = new ConcurrentHashMap<String, Timestamp>();
+		for (int i = 0; i < current.length; i++) {
+			timestampVector.put(participants.getId(i), new Timestamp(participants.getId(i), current[i]));
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("timestampVector", timestampVector);
+		fields.put("participants", participants.getIds().toArray(new String[current.length]));
+		fields.put("seqnumbers", current);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		String[] ids = (String[]) fields.get("participants", null);
+		long[] current = (long[]) fields.get("seqnumbers", null);
+		if (ids == null || current == null) {
+			// written by a previous version: the map does not keep the order of the participants
+			Map<String, Timestamp> timestampVector = (Map<String, Timestamp>) fields.get("timestampVector", null);
+			if (timestampVector == null) {
+				throw new InvalidObjectException("timestamp vector without entries");
+			}
+			ids = timestampVector.keySet().toArray(new String[timestampVector.size()]);
+			Arrays.sort(ids);
+			current = new long[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				current[i] = timestampVector.get(ids[i]).getSeqnumber();
+			}
+		} else if (ids.length != current.length) {
+			throw new InvalidObjectException("timestamp vector with " + ids.length + " participants and "
+					+ current.length + " entries");
+		}
+		participants = ParticipantRegistry.received(Arrays.asList(ids));
+		seqnumbers = new AtomicLongArray(current);
+	}
 
 	/**
 	 * toString
 	 */
 	@Override
-	public synchronized String toString() {
+	public String toString() {
+		long[] current = getSeqnumbers();
 		String all="";
-		if(timestampVector==null){
-			return all;
-		}
-		for(Enumeration<String> en=timestampVector.keys(); en.hasMoreElements();){
-			String name=en.nextElement();
-			if(timestampVector.get(name)!=null)
-				all+=timestampVector.get(name)+"\n";
+		for(int i=0; i<current.length; i++){
+			all+=new Timestamp(participants.getId(i), current[i])+"\n";
 		}
 		return all;
 	}
@@ -0,0 +1,144 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.tsae.sessions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import recipes_service.benchmarks.Fixtures;
+import recipes_service.communication.MessageAErequest;
+import recipes_service.tsae.data_structures.ParticipantRegistry;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Cost of encoding (and decoding) the summary and ack sent at the start
+ * of each session: with Java serialization, with the BinaryCodec, and
+ * with the BinaryCodec as a delta of the previous session, in which a
+ * fraction of the summary and of the rows of the ack changed.
+ *
+ * It is in the package of the BinaryCodec, which is not public.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AErequestSerializationBenchmark {
+
+	private static final int DEPTH = 10000;
+
+	@Param({"4", "16", "64"})
+	int participants;
+
+	@Param({"0.01", "0.1", "0.5"})
+	double missing;
+
+	private ParticipantRegistry registry;
+	private MessageAErequest msg;
+	private SessionHistory.SentBase base;
+	private byte[] javaSerialized;
+	private byte[] binary;
+
+	@Setup
+	public void setUp() throws IOException{
+		List<String> ids = Fixtures.participants(participants);
+		registry = ParticipantRegistry.of(ids);
+		Random random = new Random(1);
+		TimestampVector previousSummary = Fixtures.summary(ids, DEPTH, missing);
+		TimestampMatrix ack = Fixtures.ack(ids, DEPTH, missing, random);
+		long previousAckVersion = ack.getVersion();
+		// the rows of a fraction of the members change after the previous session
+		TimestampMatrix changes = Fixtures.ack(ids, DEPTH, 0, random);
+		for (int i = 0; i < participants; i++) {
+			if (random.nextDouble() < Math.max(missing, 1.0 / participants)) {
+				TimestampVector row = new TimestampVector(registry, changes.getRow(i));
+				ack.update(ids.get(i), row);
+			}
+		}
+		msg = new MessageAErequest(Fixtures.summary(ids, DEPTH, 0), ack);
+		base = new SessionHistory.SentBase(1, previousSummary, previousAckVersion);
+		javaSerialized = javaSerialization();
+		binary = binary();
+	}
+
+	@Benchmark
+	public byte[] javaSerialization() throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object javaDeserialization() throws IOException, ClassNotFoundException{
+		return new ObjectInputStream(new ByteArrayInputStream(javaSerialized)).readObject();
+	}
+
+	@Benchmark
+	public byte[] binary() throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCodec.writeMessage(out, msg, registry);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object binaryDecoding() throws IOException{
+		return BinaryCodec.readMessage(new DataInputStream(new ByteArrayInputStream(binary)), registry);
+	}
+
+	@Benchmark
+	public byte[] binaryDelta() throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCodec.writeAErequest(out, msg, registry, 2, base);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,294 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import recipes_service.LatencyRecorder;
+import recipes_service.ServerData;
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.Host;
+import recipes_service.communication.Hosts;
+import recipes_service.tsae.sessions.SessionCodec;
+import recipes_service.tsae.sessions.SessionStatistics;
+import recipes_service.tsae.sessions.TSAESessionPartnerSide;
+import recipes_service.tsae.sessions.TSAESessionServer;
+
+/**
+ * Runs a group of servers in one JVM, connected through loopback
+ * sockets, applies a workload of addRecipe and removeRecipe on random
+ * servers and measures how the group converges.
+ *
+ * Options are given as name=value arguments (see DEFAULTS). The result
+ * is printed as a single JSON object:
+ * - convergenceMillis: from the end of the workload until all logs,
+ *   summaries and recipes are equal (-1 if timeout expires first)
+ * - sessionsPerSecond: sessions completed from the start of the workload
+ *   until convergence
+ * - operationsPerSession and bytesPerSession: operations and bytes
+ *   exchanged by a completed session (both directions)
+ * - write latency percentiles, in nanoseconds, of all the servers
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public class ConvergenceBenchmark {
+
+	private static final String[][] DEFAULTS = {
+		{"replicas", "5"},
+		{"numSes", "2"},
+		{"sessionPeriod", "100"},
+		{"propDegree", "0"},
+		{"codec", "BINARY"},
+		{"batch", "50"},
+		// minimum size of the frames sent compressed (0: no compression)
+		{"compression", "0"},
+		// nio: TSAESessionServer; threads: a TSAESessionPartnerSide per connection
+		{"server", "nio"},
+		{"writes", "5000"},
+		{"removeFraction", "0.1"},
+		{"writers", "4"},
+		// pause between the writes of a writer, in microseconds
+		{"writeInterval", "0"},
+		{"timeout", "60000"},
+		{"seed", "1"},
+	};
+
+	private Map<String, String> options;
+	private ServerData[] servers;
+
+	public static void main(String[] args) throws Exception{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : DEFAULTS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+				System.err.println("unknown option " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		ConvergenceBenchmark benchmark = new ConvergenceBenchmark(options);
+		benchmark.start();
+		System.out.println(benchmark.run());
+		benchmark.stop();
+		System.exit(0);
+	}
+
+	ConvergenceBenchmark(Map<String, String> options){
+		this.options = options;
+	}
+
+	private int intOption(String name){
+		return Integer.parseInt(options.get(name));
+	}
+
+	/**
+	 * starts the servers and their listeners
+	 */
+	void start() throws IOException{
+		SimulationData.getInstance().setConnected(true);
+		int replicas = intOption("replicas");
+		boolean nio = options.get("server").equals("nio");
+		List<Host> hosts = new ArrayList<Host>();
+		ServerSocketChannel[] channels = new ServerSocketChannel[replicas];
+		ServerSocket[] sockets = new ServerSocket[replicas];
+		for (int i = 0; i < replicas; i++) {
+			int port;
+			if (nio) {
+				channels[i] = ServerSocketChannel.open();
+				channels[i].socket().bind(new InetSocketAddress("127.0.0.1", 0));
+				port = channels[i].socket().getLocalPort();
+			} else {
+				sockets[i] = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+				port = sockets[i].getLocalPort();
+			}
+			hosts.add(new Host("127.0.0.1", port, "server" + i));
+		}
+		servers = new ServerData[replicas];
+		for (int i = 0; i < replicas; i++) {
+			Hosts participants = new Hosts(hosts.get(i));
+			for (Host host : hosts) {
+				participants.add(host);
+			}
+			ServerData serverData = new ServerData("benchmark");
+			serverData.setId("server" + i);
+			serverData.setNumberSessions(intOption("numSes"));
+			serverData.setSessionPeriod(intOption("sessionPeriod"));
+			serverData.setPropagationDegree(intOption("propDegree"));
+			serverData.setSessionCodec(SessionCodec.valueOf(options.get("codec")));
+			serverData.setOperationBatchSize(intOption("batch"));
+			serverData.setSessionCompressionThreshold(intOption("compression"));
+			if (nio) {
+				TSAESessionServer server = new TSAESessionServer(channels[i], serverData);
+				server.setDaemon(true);
+				server.start();
+			} else {
+				listen(sockets[i], serverData);
+			}
+			serverData.startTSAE(participants);
+			servers[i] = serverData;
+		}
+	}
+
+	private static void listen(final ServerSocket serverSocket, final ServerData serverData){
+		Thread listener = new Thread("TSAEListener-" + serverData.getId()) {
+			public void run(){
+				try {
+					while (true) {
+						Socket socket = serverSocket.accept();
+						new TSAESessionPartnerSide(socket, serverData).start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	/**
+	 * runs the workload and waits for the group to converge
+	 * @return the results, as a JSON object
+	 */
+	String run() throws InterruptedException{
+		final int writes = intOption("writes");
+		final int writers = intOption("writers");
+		final double removeFraction = Double.parseDouble(options.get("removeFraction"));
+		final long writeInterval = Long.parseLong(options.get("writeInterval"));
+		final AtomicInteger next = new AtomicInteger();
+		long start = System.nanoTime();
+		Thread[] threads = new Thread[writers];
+		for (int w = 0; w < writers; w++) {
+			final Random random = new Random(Long.parseLong(options.get("seed")) + w);
+			final int writer = w;
+			threads[w] = new Thread("Writer-" + w) {
+				public void run(){
+					// recipes added by this writer, and the server that added them
+					List<String> titles = new ArrayList<String>();
+					List<ServerData> owners = new ArrayList<ServerData>();
+					for (int n = next.getAndIncrement(); n < writes; n = next.getAndIncrement()) {
+						if (!titles.isEmpty() && random.nextDouble() < removeFraction) {
+							int i = random.nextInt(titles.size());
+							owners.remove(i).removeRecipe(titles.remove(i));
+						} else {
+							ServerData server = servers[random.nextInt(servers.length)];
+							String title = "recipe " + writer + "-" + n;
+							server.addRecipe(title, "body of " + title);
+							titles.add(title);
+							owners.add(server);
+						}
+						if (writeInterval > 0) {
+							pause(writeInterval);
+						}
+					}
+				}
+			};
+			threads[w].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long workloadEnd = System.nanoTime();
+		long timeout = Long.parseLong(options.get("timeout"));
+		long convergence = -1;
+		while ((System.nanoTime() - workloadEnd) / 1000000 < timeout) {
+			if (converged()) {
+				convergence = System.nanoTime();
+				break;
+			}
+			Thread.sleep(1);
+		}
+		long end = (convergence < 0 ? System.nanoTime() : convergence);
+
+		long sessions = 0;
+		long operations = 0;
+		long bytes = 0;
+		LatencyRecorder latency = new LatencyRecorder();
+		for (ServerData server : servers) {
+			SessionStatistics statistics = server.getSessionStatistics();
+			sessions += statistics.getCompletedSessions();
+			operations += statistics.getOperationsSent() + statistics.getOperationsReceived();
+			bytes += statistics.getBytesSent() + statistics.getBytesReceived();
+			latency.add(server.getWriteLatency());
+		}
+		double seconds = (end - start) / 1e9;
+		StringBuilder result = new StringBuilder("{");
+		for (String[] option : DEFAULTS) {
+			String value = options.get(option[0]);
+			boolean number = value.matches("-?[0-9.]+");
+			result.append('"').append(option[0]).append("\": ")
+				.append(number ? value : '"' + value + '"').append(", ");
+		}
+		result.append("\"convergenceMillis\": ").append(convergence < 0 ? -1 : (convergence - workloadEnd) / 1000000)
+			.append(", \"workloadMillis\": ").append((workloadEnd - start) / 1000000)
+			.append(", \"sessions\": ").append(sessions)
+			.append(", \"sessionsPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", sessions / seconds))
+			.append(", \"operationsPerSession\": ").append(String.format(Locale.ROOT, "%.2f", sessions == 0 ? 0.0 : (double) operations / sessions))
+			.append(", \"bytesPerSession\": ").append(String.format(Locale.ROOT, "%.1f", sessions == 0 ? 0.0 : (double) bytes / sessions))
+			.append(", \"writeLatencyP50\": ").append(latency.getPercentile(50))
+			.append(", \"writeLatencyP99\": ").append(latency.getPercentile(99))
+			.append(", \"writeLatencyP999\": ").append(latency.getPercentile(99.9))
+			.append("}");
+		return result.toString();
+	}
+
+	private boolean converged(){
+		for (int i = 1; i < servers.length; i++) {
+			if (!servers[i].getSummary().equals(servers[0].getSummary())
+					|| !servers[i].getLog().equals(servers[0].getLog())
+					|| !servers[i].getRecipes().equals(servers[0].getRecipes())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void stop(){
+		for (ServerData server : servers) {
+			server.stopTSAEsessions();
+		}
+	}
+
+	private static void pause(long micros){
+		try {
+			Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
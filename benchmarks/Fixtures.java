@@ -0,0 +1,118 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Data shared by the benchmarks: groups of participants, logs filled
+ * with operations and summaries that miss part of them.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+public final class Fixtures {
+
+	private Fixtures(){
+	}
+
+	/**
+	 * @param n
+	 * @return ids of a group of n participants
+	 */
+	public static List<String> participants(int n){
+		List<String> ids = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++) {
+			ids.add("host" + i);
+		}
+		return ids;
+	}
+
+	public static Operation operation(String host, long seqnumber){
+		Timestamp timestamp = new Timestamp(host, seqnumber);
+		return new AddOperation(new Recipe("recipe " + host + " " + seqnumber, "recipe body", "group", timestamp), timestamp);
+	}
+
+	/**
+	 * @param ids
+	 * @param depth
+	 * @return a log with depth operations of each participant
+	 */
+	public static Log log(List<String> ids, int depth){
+		Log log = new Log(ids);
+		for (long seq = 0; seq < depth; seq++) {
+			for (String id : ids) {
+				log.add(operation(id, seq));
+			}
+		}
+		return log;
+	}
+
+	/**
+	 * @param ids
+	 * @param depth: operations of each participant
+	 * @param missing: fraction of the operations of each participant not covered
+	 * @return summary of a member that misses the last operations of each participant
+	 */
+	public static TimestampVector summary(List<String> ids, int depth, double missing){
+		TimestampVector summary = new TimestampVector(ids);
+		long last = depth - 1 - Math.round(depth * missing);
+		if (last >= 0) {
+			for (String id : ids) {
+				summary.updateTimestamp(new Timestamp(id, last));
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * @param ids
+	 * @param depth: operations of each participant
+	 * @param missing: maximum fraction of the operations of each participant a row misses
+	 * @param random
+	 * @return ack whose rows miss a random part of the operations
+	 */
+	public static TimestampMatrix ack(List<String> ids, int depth, double missing, Random random){
+		TimestampMatrix ack = new TimestampMatrix(ids);
+		for (String node : ids) {
+			TimestampVector row = new TimestampVector(ids);
+			for (String id : ids) {
+				long last = depth - 1 - Math.round(depth * missing * random.nextDouble());
+				if (last >= 0) {
+					row.updateTimestamp(new Timestamp(id, last));
+				}
+			}
+			ack.update(node, row);
+		}
+		return ack;
+	}
+}
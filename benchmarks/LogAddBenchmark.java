@@ -0,0 +1,87 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.Log;
+
+/**
+ * Cost of Log.add, by number of participants. The operations are
+ * created beforehand; once all have been added the log starts again
+ * empty.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogAddBenchmark {
+
+	private static final int OPERATIONS = 1 << 18;
+
+	@Param({"4", "16", "64"})
+	int participants;
+
+	private List<String> ids;
+	private Operation[] operations = new Operation[OPERATIONS];
+	private int next;
+	private Log log;
+
+	@Setup
+	public void setUp(){
+		ids = Fixtures.participants(participants);
+		// participants take turns, as when sessions bring operations of every member
+		for (int i = 0; i < OPERATIONS; i++) {
+			operations[i] = Fixtures.operation(ids.get(i % participants), i / participants);
+		}
+		log = new Log(ids);
+		next = 0;
+	}
+
+	@Benchmark
+	public boolean add(){
+		if (next == OPERATIONS) {
+			log = new Log(ids);
+			next = 0;
+		}
+		return log.add(operations[next++]);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Cost of finding the operations a partner misses (Log.listNewer and
+ * Log.newerIterator), by number of participants, operations of each
+ * participant in the log and fraction of them the partner misses.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+	@Param({"4", "16", "64"})
+	int participants;
+
+	@Param({"1000", "10000"})
+	int depth;
+
+	@Param({"0.01", "0.1", "0.5"})
+	double missing;
+
+	private Log log;
+	private TimestampVector summary;
+
+	@Setup
+	public void setUp(){
+		List<String> ids = Fixtures.participants(participants);
+		log = Fixtures.log(ids, depth);
+		summary = Fixtures.summary(ids, depth, missing);
+	}
+
+	@Benchmark
+	public List<Operation> listNewer(){
+		return log.listNewer(summary);
+	}
+
+	@Benchmark
+	public void newerIterator(Blackhole blackhole){
+		Iterator<Operation> operations = log.newerIterator(summary);
+		while (operations.hasNext()) {
+			blackhole.consume(operations.next());
+		}
+	}
+}
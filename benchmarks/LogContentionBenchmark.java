@@ -0,0 +1,156 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Log.add running at the same time as sessions reading the log
+ * (Log.listNewer or Log.newerIterator), as when a server receives
+ * operations while it serves sessions.
+ *
+ * One thread adds operations of every participant in turns. Every
+ * depth / 10 rounds it purges the log down to depth operations per
+ * participant and moves the summary of the readers, so they always
+ * miss the given fraction of the log.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogContentionBenchmark {
+
+	@Param({"4", "16"})
+	int participants;
+
+	@Param({"1000", "10000"})
+	int depth;
+
+	@Param({"0.1"})
+	double missing;
+
+	private List<String> ids;
+	private Log log;
+	// next sequence number of every participant (only the adding thread writes it)
+	private long seq;
+	private int slot;
+	private volatile TimestampVector summary;
+
+	@Setup(Level.Iteration)
+	public void setUp(){
+		ids = Fixtures.participants(participants);
+		log = Fixtures.log(ids, depth);
+		seq = depth;
+		slot = 0;
+		summary = Fixtures.summary(ids, depth, missing);
+	}
+
+	@Benchmark
+	@Group("addVsListNewer")
+	@GroupThreads(1)
+	public boolean addWhileListing(){
+		return add();
+	}
+
+	@Benchmark
+	@Group("addVsListNewer")
+	@GroupThreads(3)
+	public List<Operation> listNewer(){
+		return log.listNewer(summary);
+	}
+
+	@Benchmark
+	@Group("addVsNewerIterator")
+	@GroupThreads(1)
+	public boolean addWhileIterating(){
+		return add();
+	}
+
+	@Benchmark
+	@Group("addVsNewerIterator")
+	@GroupThreads(3)
+	public void newerIterator(Blackhole blackhole){
+		Iterator<Operation> operations = log.newerIterator(summary);
+		while (operations.hasNext()) {
+			blackhole.consume(operations.next());
+		}
+	}
+
+	private boolean add(){
+		boolean added = log.add(Fixtures.operation(ids.get(slot), seq));
+		if (++slot == participants) {
+			slot = 0;
+			seq++;
+			if (seq % Math.max(depth / 10, 1) == 0) {
+				slide();
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * keeps depth operations per participant and moves the summary of the readers
+	 */
+	private void slide(){
+		TimestampVector acknowledged = new TimestampVector(ids);
+		TimestampVector known = new TimestampVector(ids);
+		for (String id : ids) {
+			acknowledged.updateTimestamp(new Timestamp(id, seq - depth - 1));
+			known.updateTimestamp(new Timestamp(id, seq - 1 - Math.round(depth * missing)));
+		}
+		TimestampMatrix ack = new TimestampMatrix(ids);
+		for (String id : ids) {
+			ack.update(id, acknowledged);
+		}
+		log.purgeLog(ack);
+		summary = known;
+	}
+}
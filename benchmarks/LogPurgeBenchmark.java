@@ -0,0 +1,90 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+
+/**
+ * Cost of Log.purgeLog on a full log, by number of participants,
+ * operations of each participant in the log and fraction of them some
+ * member has not acknowledged yet (they are kept). A purge changes the
+ * log, so each one is measured once on a new log.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(1)
+public class LogPurgeBenchmark {
+
+	@Param({"4", "16", "64"})
+	int participants;
+
+	@Param({"1000", "10000"})
+	int depth;
+
+	@Param({"0.01", "0.1", "0.5"})
+	double missing;
+
+	private List<String> ids;
+	private TimestampMatrix ack;
+	private Log log;
+
+	@Setup(Level.Trial)
+	public void setUpAck(){
+		ids = Fixtures.participants(participants);
+		ack = Fixtures.ack(ids, depth, missing, new Random(1));
+	}
+
+	@Setup(Level.Iteration)
+	public void setUpLog(){
+		log = Fixtures.log(ids, depth);
+	}
+
+	@Benchmark
+	public Log purgeLog(){
+		log.purgeLog(ack);
+		return log;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+/**
+ * Cost of the operations on summaries and acks done in each session,
+ * by number of participants and fraction of operations in which the
+ * two merged structures differ. Merges are done on a clone (as a
+ * session merging the structures of a partner into a copy), so the
+ * clone is part of their cost.
+ *
+ * @author Joan-Manuel Marques
+ * December 2012
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+
+	private static final int DEPTH = 10000;
+
+	@Param({"4", "16", "64"})
+	int participants;
+
+	@Param({"0.01", "0.1", "0.5"})
+	double missing;
+
+	private TimestampVector summary;
+	private TimestampVector partnerSummary;
+	private TimestampMatrix ack;
+	private TimestampMatrix partnerAck;
+
+	@Setup
+	public void setUp(){
+		List<String> ids = Fixtures.participants(participants);
+		Random random = new Random(1);
+		summary = Fixtures.summary(ids, DEPTH, missing);
+		partnerSummary = Fixtures.summary(ids, DEPTH, 0);
+		ack = Fixtures.ack(ids, DEPTH, missing, random);
+		partnerAck = Fixtures.ack(ids, DEPTH, missing, random);
+	}
+
+	@Benchmark
+	public TimestampVector vectorClone(){
+		return summary.clone();
+	}
+
+	@Benchmark
+	public TimestampVector vectorUpdateMax(){
+		TimestampVector merged = summary.clone();
+		merged.updateMax(partnerSummary);
+		return merged;
+	}
+
+	@Benchmark
+	public TimestampVector vectorMergeMin(){
+		TimestampVector merged = partnerSummary.clone();
+		merged.mergeMin(summary);
+		return merged;
+	}
+
+	@Benchmark
+	public TimestampMatrix matrixClone(){
+		return ack.clone();
+	}
+
+	@Benchmark
+	public TimestampMatrix matrixUpdateMax(){
+		TimestampMatrix merged = ack.clone();
+		merged.updateMax(partnerAck);
+		return merged;
+	}
+
+	@Benchmark
+	public TimestampVector matrixMinTimestampVector(){
+		return ack.minTimestampVector();
+	}
+
+	@Benchmark
+	public TimestampVector matrixUpdateMaxThenMin(){
+		// the minimum after a merge, as purgeLog does at the end of a session
+		TimestampMatrix merged = ack.clone();
+		merged.updateMax(partnerAck);
+		return merged.minTimestampVector();
+	}
+}